@@ -8,6 +8,7 @@ import org.springframework.stereotype.Component;
 import pl.databucket.configuration.Constants;
 import pl.databucket.entity.*;
 import pl.databucket.repository.*;
+import pl.databucket.service.data.DataService;
 
 import java.util.*;
 
@@ -23,9 +24,18 @@ public class ApplicationInitialDataCreator implements ApplicationRunner {
     @Autowired
     private BCryptPasswordEncoder bcryptEncoder;
 
+    @Autowired
+    private DataService dataService;
+
     public void run(ApplicationArguments args) {
         createRoles();
         createSuperUser();
+        dataService.upgradeBucketTables();
+
+        // the requests are served while the indexes of big tables are built
+        Thread indexBuilder = new Thread(dataService::buildMissingIndexes, "bucket-index-builder");
+        indexBuilder.setDaemon(true);
+        indexBuilder.start();
     }
 
     private void createRoles() {
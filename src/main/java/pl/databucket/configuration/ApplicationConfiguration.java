@@ -27,9 +27,6 @@ public class ApplicationConfiguration {
         modelMapper.addMappings(new ViewPropertyMap());
         modelMapper.addMappings(new RolePropertyMap());
         modelMapper.addMappings(new DataEnumPropertyMap());
-        modelMapper.addMappings(new AccessTreeGroupPropertyMap());
-        modelMapper.addMappings(new AccessTreeBucketPropertyMap());
-        modelMapper.addMappings(new AccessTreeViewPropertyMap());
         modelMapper.addMappings(new UserColumnsPropertyMap());
         return modelMapper;
     }
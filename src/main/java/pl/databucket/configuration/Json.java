@@ -0,0 +1,22 @@
+package pl.databucket.configuration;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.util.Map;
+
+/**
+ * The ObjectMapper shared by the services and mappers. It is thread safe once configured and keeps its caches of
+ * serializers and deserializers, which are lost when a mapper is created per call.
+ */
+public final class Json {
+
+    public static final ObjectMapper MAPPER = new ObjectMapper().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    public static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
+    private Json() {
+    }
+}
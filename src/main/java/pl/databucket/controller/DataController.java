@@ -2,20 +2,21 @@ package pl.databucket.controller;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import pl.databucket.dto.*;
 import pl.databucket.entity.Tag;
 import pl.databucket.response.MessageResponse;
 import pl.databucket.service.data.*;
-import pl.databucket.entity.Bucket;
-import pl.databucket.entity.User;
+import pl.databucket.security.PrincipalSnapshot;
 import pl.databucket.exception.*;
 import pl.databucket.response.DataResponse;
-import pl.databucket.service.BucketService;
+import pl.databucket.service.BucketCache;
 import pl.databucket.service.UserService;
 
 import java.util.*;
@@ -31,7 +32,10 @@ public class DataController {
     private DataService dataService;
 
     @Autowired
-    private BucketService bucketService;
+    private JobService jobService;
+
+    @Autowired
+    private BucketCache bucketCache;
 
     @Autowired
     private UserService userService;
@@ -43,13 +47,13 @@ public class DataController {
             @PathVariable("bucketName") String bucketName,
             @RequestBody DataCreateDto dataCreateDto) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 DataDto dataDto = dataService.createData(user, bucket, dataCreateDto);
                 return new ResponseEntity<>(dataDto, HttpStatus.CREATED);
             } else
@@ -65,20 +69,51 @@ public class DataController {
     }
 
 
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @PostMapping(value = "/bulk", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> createData(
+            @PathVariable("bucketName") String bucketName,
+            @RequestBody List<DataCreateDto> dataCreateDtoList) {
+
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                List<DataDto> dataDtoList = dataService.createData(user, bucket, dataCreateDtoList);
+                return new ResponseEntity<>(dataDtoList, HttpStatus.CREATED);
+            } else
+                return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
+        } catch (DataIntegrityViolationException e) {
+            if (e.getMessage().contains("is not present in table \"tags\""))
+                return exceptionFormatter.customException("Some of the given tags do not exist!", HttpStatus.NOT_ACCEPTABLE);
+            else
+                return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+
     @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
     @PutMapping(value = {"", "/{ids}"}, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> modifyData(
             @PathVariable String bucketName,
             @PathVariable Optional<List<Long>> ids,
+            @RequestParam(required = false, defaultValue = "false") boolean async,
             @RequestBody DataModifyDto dataModifyDto) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                if (async)
+                    return accepted(jobService.submitModifyData(user, bucket, ids, dataModifyDto));
                 int count = dataService.modifyData(user, bucket, ids, dataModifyDto, new QueryRule(dataModifyDto));
                 return new ResponseEntity<>(new MessageResponse("Modified " + count + " data row(s)"), HttpStatus.OK);
             } else
@@ -96,19 +131,57 @@ public class DataController {
     }
 
 
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @PutMapping(value = "/bulk", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> modifyData(
+            @PathVariable String bucketName,
+            @RequestParam(required = false, defaultValue = "false") boolean returning,
+            @RequestParam(required = false, defaultValue = "false") boolean async,
+            @RequestBody List<DataModifyItemDto> items) {
+
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                if (async)
+                    return accepted(jobService.submitModifyItems(user, bucket, items));
+                if (returning)
+                    return new ResponseEntity<>(dataService.modifyDataReturning(user, bucket, items), HttpStatus.OK);
+                int count = dataService.modifyData(user, bucket, items);
+                return new ResponseEntity<>(new MessageResponse("Modified " + count + " data row(s)"), HttpStatus.OK);
+            } else
+                return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
+        } catch (IllegalArgumentException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (DataIntegrityViolationException e) {
+            if (e.getMessage().contains("is not present in table \"tags\""))
+                return exceptionFormatter.customException("Some of the given tags do not exist!", HttpStatus.NOT_ACCEPTABLE);
+            else if (e.getMessage().contains("cannot cast jsonb null"))
+                return exceptionFormatter.customException("Failed to operate on an empty property!", HttpStatus.NOT_ACCEPTABLE);
+            else
+                return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+
     @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
     @GetMapping(value = {"/{ids}"}, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> getData(
             @PathVariable String bucketName,
             @PathVariable List<Long> ids) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 List<DataDto> dataDtoList = dataService.getData(user, bucket, ids);
                 if (ids.size() == 1 && dataDtoList.size() == 1)
                     return new ResponseEntity<>(dataDtoList.get(0), HttpStatus.OK);
@@ -128,13 +201,13 @@ public class DataController {
             @PathVariable String bucketName,
             @PathVariable List<Long> ids) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 int count = dataService.deleteDataByIds(user, bucket, ids);
                 return new ResponseEntity<>(new MessageResponse("Removed " + count + " data row(s)"), HttpStatus.OK);
             } else
@@ -152,15 +225,21 @@ public class DataController {
             @RequestParam(required = false, defaultValue = "1") Optional<Integer> page,
             @RequestParam(required = false, defaultValue = "1") Optional<Integer> limit,
             @RequestParam(required = false, defaultValue = "id") Optional<String> sort,
+            @RequestParam(required = false) Optional<String> cursor,
+            @RequestParam(required = false, defaultValue = "exact") String count,
             @RequestBody(required = false) DataGetDto dataGetDto) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
             DataResponse response = new DataResponse();
 
+            // the page is ignored when the cursor pagination is used
+            if (cursor.isPresent())
+                page = Optional.empty();
+
             if (page.isPresent() && limit.get() > 0)
                 response.setPage(page.get());
 
@@ -170,20 +249,22 @@ public class DataController {
             if (sort.isPresent() && limit.get() > 0)
                 response.setSort(sort.get());
 
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
-                Map<ResultField, Object> result = dataService.getData(user, bucket, Optional.ofNullable(dataGetDto.getColumns()), new QueryRule(dataGetDto), page, limit, sort);
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                Map<ResultField, Object> result = dataService.getData(user, bucket, Optional.ofNullable(dataGetDto.getColumns()), new QueryRule(dataGetDto), page, limit, sort, cursor, CountMode.fromString(count));
 
-                long total = (long) result.get(ResultField.TOTAL);
+                Long total = (Long) result.get(ResultField.TOTAL);
                 response.setTotal(total);
 
-                if (page.isPresent() && limit.isPresent() && limit.get() > 0) {
+                if (total != null && page.isPresent() && limit.isPresent() && limit.get() > 0) {
                     response.setTotalPages((int) Math.ceil(total / (float) limit.get()));
                 }
 
                 if (limit.get() > 0)
                     response.setData(result.get(ResultField.DATA));
 
+                response.setNext((String) result.get(ResultField.NEXT));
+
                 if (response.getData() == null && limit.get() > 0)
                     return new ResponseEntity<>(new MessageResponse("No data matches the rules!"), HttpStatus.OK);
                 else
@@ -195,6 +276,42 @@ public class DataController {
                 return exceptionFormatter.customException("Failed to operate on an empty property!", HttpStatus.NOT_ACCEPTABLE);
             else
                 return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (IllegalArgumentException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (Exception ee) {
+            return exceptionFormatter.defaultException(ee);
+        }
+    }
+
+
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @PostMapping(value = "/export")
+    public ResponseEntity<?> exportData(
+            @PathVariable String bucketName,
+            @RequestParam(required = false, defaultValue = "ndjson") String format,
+            @RequestParam(required = false, defaultValue = "id") Optional<String> sort,
+            @RequestBody(required = false) DataGetDto dataGetDto) {
+
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            if (dataGetDto == null)
+                dataGetDto = new DataGetDto();
+
+            ExportFormat exportFormat = ExportFormat.fromString(format);
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                StreamingResponseBody body = dataService.exportData(user, bucket, Optional.ofNullable(dataGetDto.getColumns()), new QueryRule(dataGetDto), sort, exportFormat);
+                return ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(exportFormat.getContentType()))
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + bucketName + "." + exportFormat.name() + "\"")
+                        .body(body);
+            } else
+                return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
+        } catch (IllegalArgumentException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
         } catch (Exception ee) {
             return exceptionFormatter.defaultException(ee);
         }
@@ -207,25 +324,28 @@ public class DataController {
             @PathVariable("bucketName") String bucketName,
             @RequestParam(required = false, defaultValue = "1") Integer limit,
             @RequestParam(required = false, defaultValue = "data_id") Optional<String> sort,
+            @RequestParam(required = false) Optional<Integer> lease,
             @RequestBody(required = false) DataReserveDto dataReserveDto) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
+        if (lease.isPresent() && lease.get() <= 0)
+            return exceptionFormatter.customException("The lease must be greater than 0 seconds!", HttpStatus.NOT_ACCEPTABLE);
+
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 String targetOwnerUsername = user.getUsername();
                 if (user.isAdminUser() && dataReserveDto.getTargetOwnerUsername() != null)
                     targetOwnerUsername = dataReserveDto.getTargetOwnerUsername();
 
-                List<Long> dataIds = dataService.reserveData(user, bucket, new QueryRule(dataReserveDto), Optional.of(limit), sort, targetOwnerUsername);
-                if (dataIds != null && dataIds.size() == 1) {
-                    DataDto dataDto = dataService.getData(user, bucket, dataIds.get(0));
-                    return new ResponseEntity<>(dataDto, HttpStatus.OK);
-                } else if (dataIds != null && dataIds.size() > 1) {
-                    return new ResponseEntity<>(dataIds, HttpStatus.OK);
+                List<?> data = dataService.reserveData(user, bucket, Optional.ofNullable(dataReserveDto.getColumns()), new QueryRule(dataReserveDto), Optional.of(limit), sort, targetOwnerUsername, lease);
+                if (data.size() == 1) {
+                    return new ResponseEntity<>(data.get(0), HttpStatus.OK);
+                } else if (data.size() > 1) {
+                    return new ResponseEntity<>(data, HttpStatus.OK);
                 } else
                     return new ResponseEntity<>(new MessageResponse("No data matches the rules!"), HttpStatus.OK);
             } else
@@ -241,21 +361,52 @@ public class DataController {
     }
 
 
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @PostMapping(value = {"/{ids}/lease"}, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> extendLease(
+            @PathVariable String bucketName,
+            @PathVariable List<Long> ids,
+            @RequestParam Integer lease) {
+
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        if (lease <= 0)
+            return exceptionFormatter.customException("The lease must be greater than 0 seconds!", HttpStatus.NOT_ACCEPTABLE);
+
+        try {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                int count = dataService.extendLease(user, bucket, ids, lease);
+                return new ResponseEntity<>(new MessageResponse("Extended the lease of " + count + " data row(s)"), HttpStatus.OK);
+            } else
+                return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
+        } catch (Exception ee) {
+            return exceptionFormatter.defaultException(ee);
+        }
+    }
+
+
     @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
     @DeleteMapping(produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> deleteData(
             @PathVariable String bucketName,
+            @RequestParam(required = false, defaultValue = "false") boolean async,
             @RequestBody DataRemoveDto dataRemoveDto) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
-                int count = dataService.deleteDataByRules(user, bucket, new QueryRule(dataRemoveDto));
-                return new ResponseEntity<>(new MessageResponse("Removed " + count + " data row(s)"), HttpStatus.OK);
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
+                // more rows than the sync-delete-limit are deleted by a job as well
+                Optional<Integer> count = async ? Optional.empty() : dataService.deleteDataByRules(user, bucket, new QueryRule(dataRemoveDto));
+                if (!count.isPresent())
+                    return accepted(jobService.submitDeleteData(user, bucket, dataRemoveDto));
+                return new ResponseEntity<>(new MessageResponse("Removed " + count.get() + " data row(s)"), HttpStatus.OK);
             } else
                 return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
         } catch (DataIntegrityViolationException e) {
@@ -267,4 +418,12 @@ public class DataController {
             return exceptionFormatter.defaultException(ee);
         }
     }
+
+
+    // The operation runs as a job, the response points to its progress
+    private ResponseEntity<?> accepted(Job job) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.LOCATION, "/api/jobs/" + job.getId());
+        return new ResponseEntity<>(job, headers, HttpStatus.ACCEPTED);
+    }
 }
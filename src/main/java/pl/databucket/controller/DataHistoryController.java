@@ -5,13 +5,13 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import pl.databucket.entity.Bucket;
-import pl.databucket.entity.User;
+import pl.databucket.security.PrincipalSnapshot;
 import pl.databucket.exception.BucketNotFoundException;
 import pl.databucket.exception.ExceptionFormatter;
 import pl.databucket.exception.NoAccessToBucketException;
-import pl.databucket.service.BucketService;
+import pl.databucket.service.BucketCache;
 import pl.databucket.service.UserService;
+import pl.databucket.service.data.BucketDescriptor;
 import pl.databucket.service.data.DataService;
 import java.util.List;
 
@@ -24,7 +24,7 @@ public class DataHistoryController {
     private final DataService service;
 
     @Autowired
-    private BucketService bucketService;
+    private BucketCache bucketCache;
 
     @Autowired
     private UserService userService;
@@ -41,13 +41,13 @@ public class DataHistoryController {
             @PathVariable String bucketName,
             @PathVariable Long id) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 return new ResponseEntity<>(service.getDataHistory(bucket, id), HttpStatus.OK);
             } else
                 return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
@@ -64,13 +64,13 @@ public class DataHistoryController {
             @PathVariable Long id,
             @PathVariable List<Long> ids) {
 
-        Bucket bucket = bucketService.getBucket(bucketName);
+        BucketDescriptor bucket = bucketCache.getBucket(bucketName);
         if (bucket == null)
             return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
 
         try {
-            User user = userService.getCurrentUser();
-            if (bucketService.hasUserAccessToBucket(bucket, user)) {
+            PrincipalSnapshot user = userService.getCurrentPrincipal();
+            if (bucketCache.hasUserAccessToBucket(bucket, user)) {
                 return new ResponseEntity<>(service.getDataHistoryProperties(bucket, id, ids), HttpStatus.OK);
             } else
                 return exceptionFormatter.customException(new NoAccessToBucketException(bucketName), HttpStatus.NOT_FOUND);
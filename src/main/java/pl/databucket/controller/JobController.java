@@ -0,0 +1,55 @@
+package pl.databucket.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+import pl.databucket.exception.ExceptionFormatter;
+import pl.databucket.exception.ItemNotFoundException;
+import pl.databucket.service.UserService;
+import pl.databucket.service.data.Job;
+import pl.databucket.service.data.JobService;
+
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+
+    private final ExceptionFormatter exceptionFormatter = new ExceptionFormatter(JobController.class);
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private UserService userService;
+
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getJob(@PathVariable long id) {
+        try {
+            Job job = jobService.getJob(userService.getCurrentPrincipal(), id);
+            if (job != null)
+                return new ResponseEntity<>(job, HttpStatus.OK);
+            else
+                return exceptionFormatter.customException(new ItemNotFoundException(Job.class, id), HttpStatus.NOT_FOUND);
+        } catch (Exception ee) {
+            return exceptionFormatter.defaultException(ee);
+        }
+    }
+
+    @PreAuthorize("hasAnyRole('MEMBER', 'ROBOT')")
+    @DeleteMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> cancelJob(@PathVariable long id) {
+        try {
+            Job job = jobService.cancelJob(userService.getCurrentPrincipal(), id);
+            if (job != null)
+                return new ResponseEntity<>(job, HttpStatus.OK);
+            else
+                return exceptionFormatter.customException(new ItemNotFoundException(Job.class, id), HttpStatus.NOT_FOUND);
+        } catch (Exception ee) {
+            return exceptionFormatter.defaultException(ee);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pl.databucket.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+import pl.databucket.exception.ExceptionFormatter;
+import pl.databucket.service.data.IndexAdvisor;
+import pl.databucket.service.data.QueryTemplateCache;
+import pl.databucket.service.data.StatementStatistics;
+
+@PreAuthorize("hasRole('SUPER')")
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+@RequestMapping("/api/manage/statistics")
+@RestController
+public class ManageStatisticsController {
+
+    private final ExceptionFormatter exceptionFormatter = new ExceptionFormatter(ManageStatisticsController.class);
+
+    @Autowired
+    private QueryTemplateCache queryTemplateCache;
+
+    @Autowired
+    private StatementStatistics statementStatistics;
+
+    @Autowired
+    private IndexAdvisor indexAdvisor;
+
+
+    @GetMapping(value = "/query-cache")
+    public ResponseEntity<?> getQueryCacheStatistics() {
+        try {
+            return new ResponseEntity<>(queryTemplateCache.getStatistics(), HttpStatus.OK);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+    @GetMapping(value = "/statements")
+    public ResponseEntity<?> getStatementStatistics() {
+        try {
+            return new ResponseEntity<>(statementStatistics.getStatistics(), HttpStatus.OK);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+    @GetMapping(value = "/index-advice")
+    public ResponseEntity<?> getIndexRecommendations() {
+        try {
+            return new ResponseEntity<>(indexAdvisor.getRecommendations(), HttpStatus.OK);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+    @DeleteMapping(value = "/index-advice")
+    public ResponseEntity<?> clearIndexRecommendations() {
+        try {
+            indexAdvisor.clear();
+            return new ResponseEntity<>(null, HttpStatus.NO_CONTENT);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package pl.databucket.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+import pl.databucket.dto.PropertyIndexDto;
+import pl.databucket.entity.Bucket;
+import pl.databucket.exception.*;
+import pl.databucket.service.BucketService;
+import pl.databucket.service.data.PropertyIndexService;
+
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+@PreAuthorize("hasRole('ADMIN')")
+@RequestMapping("/api/buckets/{bucketName}/indexes")
+@RestController
+public class PropertyIndexController {
+
+    private final ExceptionFormatter exceptionFormatter = new ExceptionFormatter(PropertyIndexController.class);
+
+    @Autowired
+    private BucketService bucketService;
+
+    @Autowired
+    private PropertyIndexService propertyIndexService;
+
+
+    @GetMapping
+    public ResponseEntity<?> getIndexes(@PathVariable String bucketName) {
+        Bucket bucket = bucketService.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            return new ResponseEntity<>(propertyIndexService.getIndexes(bucket), HttpStatus.OK);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+    @PostMapping
+    public ResponseEntity<?> createIndex(@PathVariable String bucketName, @RequestBody PropertyIndexDto propertyIndexDto) {
+        Bucket bucket = bucketService.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            String usage = propertyIndexDto.getUsage() != null ? propertyIndexDto.getUsage() : PropertyIndexService.USAGE_FILTER;
+            PropertyIndexDto index = propertyIndexService.createIndex(bucket, propertyIndexDto.getPath(), usage);
+            return new ResponseEntity<>(index, HttpStatus.CREATED);
+        } catch (ItemNotFoundException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_FOUND);
+        } catch (ItemAlreadyExistsException | IllegalArgumentException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_ACCEPTABLE);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+
+    @DeleteMapping(value = "/{indexName}")
+    public ResponseEntity<?> dropIndex(@PathVariable String bucketName, @PathVariable String indexName) {
+        Bucket bucket = bucketService.getBucket(bucketName);
+        if (bucket == null)
+            return exceptionFormatter.customException(new BucketNotFoundException(bucketName), HttpStatus.NOT_FOUND);
+
+        try {
+            propertyIndexService.dropIndex(bucket, indexName);
+            return new ResponseEntity<>(null, HttpStatus.NO_CONTENT);
+        } catch (ItemNotFoundException e) {
+            return exceptionFormatter.customException(e, HttpStatus.NOT_FOUND);
+        } catch (Exception e) {
+            return exceptionFormatter.defaultException(e);
+        }
+    }
+}
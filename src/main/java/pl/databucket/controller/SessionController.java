@@ -25,13 +25,7 @@ public class SessionController {
     private UserService userService;
 
     @Autowired
-    private GroupService groupService;
-
-    @Autowired
-    private BucketService bucketService;
-
-    @Autowired
-    private ViewService viewService;
+    private AccessTreeService accessTreeService;
 
     @Autowired
     private DataColumnsService columnsService;
@@ -60,14 +54,9 @@ public class SessionController {
             List<AuthProjectDto> projects = user.getProjects().stream().map(item -> modelMapper.map(item, AuthProjectDto.class)).collect(Collectors.toList());
             accessTreeDto.setProjects(projects.stream().filter(project -> project.isEnabled() && !project.isExpired()).collect(Collectors.toList()));
 
-            List<Group> groups = groupService.getAccessTreeGroups(user);
-            accessTreeDto.setGroups(groups.stream().map(item -> modelMapper.map(item, AccessTreeGroupDto.class)).collect(Collectors.toList()));
-
-            List<Bucket> buckets = bucketService.getAccessTreeBuckets(user);
-            accessTreeDto.setBuckets(buckets.stream().map(item -> modelMapper.map(item, AccessTreeBucketDto.class)).collect(Collectors.toList()));
-
-            List<View> views = viewService.getAccessTreeViews(user);
-            accessTreeDto.setViews(views.stream().map(item -> modelMapper.map(item, AccessTreeViewDto.class)).collect(Collectors.toList()));
+            accessTreeDto.setGroups(accessTreeService.getAccessTreeGroups(user));
+            accessTreeDto.setBuckets(accessTreeService.getAccessTreeBuckets(user));
+            accessTreeDto.setViews(accessTreeService.getAccessTreeViews(user));
 
             return new ResponseEntity<>(cleanAccessTree(accessTreeDto), HttpStatus.OK);
         } catch (IllegalArgumentException e1) {
@@ -4,6 +4,7 @@ import lombok.Getter;
 import lombok.Setter;
 import pl.databucket.configuration.Constants;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.Size;
 import java.util.Date;
 import java.util.Set;
@@ -23,6 +24,8 @@ public class BucketDto {
     private Set<Long> usersIds;
     private Set<Short> teamsIds;
     private boolean history;
+    @Min(1)
+    private Integer historyRetention;
     private boolean protectedData;
     private Short roleId;
 
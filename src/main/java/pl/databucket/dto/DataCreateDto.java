@@ -2,7 +2,6 @@ package pl.databucket.dto;
 
 import lombok.Getter;
 import lombok.Setter;
-import java.util.Map;
 
 @Getter
 @Setter
@@ -10,6 +9,6 @@ public class DataCreateDto {
 
     private Long tagId;
     private Boolean reserved;
-    private Map<String, Object> properties;
+    private RawJson properties; // copied from the request and bound to the jsonb parameter as it is
 
 }
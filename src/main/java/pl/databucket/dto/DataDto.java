@@ -4,7 +4,6 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.Date;
-import java.util.Map;
 
 @Getter
 @Setter
@@ -14,7 +13,8 @@ public class DataDto {
     private Long tagId;
     private boolean reserved;
     private String owner;
-    private Map<String, Object> properties;
+    private Date reservedUntil;
+    private Object properties; // Map of the properties, or RawJson written to the response as it is
 
     private String createdBy;
     private Date createdAt;
@@ -13,7 +13,7 @@ public class DataModifyDto implements SearchRules {
 
     private Long tagId;
     private Boolean reserved;
-    private Map<String, Object> properties;
+    private RawJson properties; // copied from the request and bound to the jsonb parameter as it is
     private Map<String, Object> propertiesToSet;
     private List<String> propertiesToRemove;
 
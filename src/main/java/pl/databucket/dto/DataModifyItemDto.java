@@ -0,0 +1,13 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+// Change of one data row in a batch modification, the search rules are not used
+@Getter
+@Setter
+public class DataModifyItemDto extends DataModifyDto {
+
+    private Long id;
+
+}
@@ -12,6 +12,7 @@ import java.util.Map;
 public class DataReserveDto implements SearchRules {
 
     private String targetOwnerUsername;
+    private List<CustomColumnDto> columns;
 
     // Search rules
     private List<Map<String, Object>> conditions; // Old filtering method
@@ -0,0 +1,21 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Set;
+
+@Getter
+@Setter
+public class IndexRecommendationDto {
+
+    private long bucketId;
+    private String path;
+    private String usage;
+    private String cast;
+    private Set<String> operators;
+    private long executions;
+    private double avgMillis;
+    private double avgRows;
+    private boolean indexed;
+}
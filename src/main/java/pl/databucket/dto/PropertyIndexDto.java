@@ -0,0 +1,16 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class PropertyIndexDto {
+
+    private String name;
+    private String path;
+    private String type;
+    private String usage; // filter, sort or pattern
+    private String expression;
+    private boolean valid;
+}
@@ -0,0 +1,19 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class QueryTemplateCacheDto {
+
+    private int size;
+    private int maxSize;
+    private long hits;
+    private long misses;
+
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total > 0 ? (double) hits / total : 0;
+    }
+}
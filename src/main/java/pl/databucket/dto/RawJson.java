@@ -0,0 +1,64 @@
+package pl.databucket.dto;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import pl.databucket.configuration.Json;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * JSON text passed between the request, the database and the response as it is, without building a tree of
+ * objects. It is written verbatim and read from a request by copying the tokens of a JSON object, which are
+ * validated by the parser.
+ */
+@JsonDeserialize(using = RawJson.Deserializer.class)
+public final class RawJson implements JsonSerializable {
+
+    private final String json;
+
+    public RawJson(String json) {
+        this.json = json;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+        generator.writeRawValue(json);
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator generator, SerializerProvider serializers, TypeSerializer typeSerializer) throws IOException {
+        serialize(generator, serializers);
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    public static class Deserializer extends JsonDeserializer<RawJson> {
+
+        @Override
+        public RawJson deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.currentToken() != JsonToken.START_OBJECT)
+                return (RawJson) context.handleUnexpectedToken(RawJson.class, parser);
+
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = Json.MAPPER.getFactory().createGenerator(writer)) {
+                generator.copyCurrentStructure(parser);
+            }
+            return new RawJson(writer.toString());
+        }
+    }
+}
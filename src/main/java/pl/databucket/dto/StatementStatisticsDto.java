@@ -0,0 +1,21 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class StatementStatisticsDto {
+
+    private int prepareThreshold;
+    private long executions;
+    private long executionsBeyondThreshold;
+    private int distinctStatements;
+    private List<StatementUsageDto> topStatements;
+
+    public double getBeyondThresholdRatio() {
+        return executions > 0 ? (double) executionsBeyondThreshold / executions : 0;
+    }
+}
@@ -0,0 +1,12 @@
+package pl.databucket.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class StatementUsageDto {
+
+    private String sql;
+    private long executions;
+}
@@ -47,6 +47,10 @@ public class Bucket extends Auditable<String> implements TenantSupport {
     @Column(nullable = false)
     private boolean history = false;
 
+    // Months of history kept by a partitioned history table, null keeps the whole history
+    @Column(name = "history_retention")
+    private Integer historyRetention;
+
     @Column(name = "protected_data", nullable = false)
     private boolean protectedData = false;
 
@@ -16,6 +16,7 @@ public class BucketPropertyMap extends PropertyMap<Bucket, BucketDto> {
         map().setGroupsIds(source.getGroupsIds());
         map().setUsersIds(source.getUsersIds());
         map().setHistory(source.isHistory());
+        map().setHistoryRetention(source.getHistoryRetention());
         map().setProtectedData(source.isProtectedData());
         map().setRoleId(source.getRole().getId());
         map().setTeamsIds(source.getTeamsIds());
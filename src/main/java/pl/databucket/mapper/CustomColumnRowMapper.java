@@ -0,0 +1,48 @@
+package pl.databucket.mapper;
+
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+import pl.databucket.dto.RawJson;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the rows selected with custom columns. The kinds of the columns are read from the metadata of the first
+ * row: jsonb columns are passed through as RawJson, the other values arrive typed by the casts of the query.
+ * The mapper keeps the columns of one result set, so it must not be shared between queries.
+ */
+public final class CustomColumnRowMapper implements RowMapper<Map<String, Object>> {
+
+    private String[] labels;
+    private boolean[] json;
+
+    @Override
+    public Map<String, Object> mapRow(ResultSet rs, int rowNum) throws SQLException {
+        if (labels == null)
+            readColumns(rs.getMetaData());
+
+        Map<String, Object> row = new LinkedHashMap<>(labels.length * 2);
+        for (int i = 0; i < labels.length; i++) {
+            if (json[i]) {
+                String value = rs.getString(i + 1);
+                row.put(labels[i], value != null ? new RawJson(value) : null);
+            } else
+                row.put(labels[i], JdbcUtils.getResultSetValue(rs, i + 1));
+        }
+        return row;
+    }
+
+    private void readColumns(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        labels = new String[count];
+        json = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = JdbcUtils.lookupColumnName(metaData, i + 1);
+            json[i] = "jsonb".equals(metaData.getColumnTypeName(i + 1)) || "json".equals(metaData.getColumnTypeName(i + 1));
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package pl.databucket.mapper;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.SneakyThrows;
-import org.postgresql.util.PGobject;
 import org.springframework.jdbc.core.RowMapper;
+import pl.databucket.configuration.Json;
+import pl.databucket.dto.RawJson;
 import pl.databucket.service.data.COL;
 import pl.databucket.dto.DataDto;
 
@@ -14,6 +13,13 @@ import java.util.Map;
 
 public final class DataRowMapper implements RowMapper<DataDto> {
 
+    // the properties are passed to the response as the text of the jsonb column instead of being parsed into a map
+    private final boolean rawProperties;
+
+    public DataRowMapper(boolean rawProperties) {
+        this.rawProperties = rawProperties;
+    }
+
     @SneakyThrows
     @Override
     public DataDto mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -22,7 +28,10 @@ public final class DataRowMapper implements RowMapper<DataDto> {
         dataDto.setTagId(rs.getLong(COL.TAG_ID));
         dataDto.setReserved(rs.getBoolean(COL.RESERVED));
         dataDto.setOwner(rs.getString(COL.RESERVED_BY));
-        dataDto.setProperties(convertPGObjectToMap((PGobject) rs.getObject(COL.PROPERTIES)));
+        dataDto.setReservedUntil(rs.getTimestamp(COL.RESERVED_UNTIL));
+        String properties = rs.getString(COL.PROPERTIES);
+        if (properties != null)
+            dataDto.setProperties(rawProperties ? new RawJson(properties) : convertJsonToMap(properties));
         dataDto.setCreatedAt(rs.getDate(COL.CREATED_AT));
         dataDto.setCreatedBy(rs.getString(COL.CREATED_BY));
         dataDto.setModifiedAt(rs.getDate(COL.MODIFIED_AT));
@@ -30,9 +39,7 @@ public final class DataRowMapper implements RowMapper<DataDto> {
         return dataDto;
     }
 
-    public Map<String, Object> convertPGObjectToMap(PGobject source) throws JsonProcessingException {
-        return new ObjectMapper().readValue(source.getValue(), new TypeReference<Map<String, Object>>() {
-        });
+    public Map<String, Object> convertJsonToMap(String json) throws JsonProcessingException {
+        return Json.MAPPER.readValue(json, Json.MAP_TYPE);
     }
 }
-
@@ -15,6 +15,7 @@ public interface BucketRepository extends JpaRepository<Bucket, Long> {
 
     Bucket findByIdAndDeleted(long id, boolean deleted);
     Bucket findByNameAndDeleted(String name, boolean deleted);
+    Bucket findByProjectIdAndNameAndDeleted(Integer projectId, String name, boolean deleted);
     List<Bucket> findAllByDeletedAndIdIn(boolean deleted, Iterable<Long> longs);
     List<Bucket> findAllByDeletedOrderById(boolean deleted);
     List<Bucket> findAllByDeletedAndDataClass(boolean deleted, DataClass dataClassId);
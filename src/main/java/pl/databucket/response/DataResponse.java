@@ -15,5 +15,6 @@ public class DataResponse {
     private Long total;
     private Integer totalPages;
     private String sort;
+    private String next;
     private Object data;
 }
@@ -17,6 +17,7 @@ public class CustomUserDetails implements UserDetails {
     private Integer projectId;
     private Boolean enabled;
     private boolean superUser;
+    private PrincipalSnapshot principal;
 
     public CustomUserDetails(String username,
                              String password,
@@ -31,6 +32,11 @@ public class CustomUserDetails implements UserDetails {
         this.superUser = superUser;
     }
 
+    public CustomUserDetails(PrincipalSnapshot principal) {
+        this(principal.getUsername(), "", principal.getAuthorities(), principal.isEnabled(), principal.isSuperUser());
+        this.principal = principal;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
         return authorities;
@@ -1,5 +1,6 @@
 package pl.databucket.security;
 
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.SignatureException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -7,7 +8,6 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.web.filter.OncePerRequestFilter;
-import pl.databucket.service.UserService;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -21,7 +21,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
     public static final String HEADER_AUTHORIZATION = "Authorization";
 
     @Autowired
-    private UserService userService;
+    private PrincipalCache principalCache;
 
     @Autowired
     private TokenProvider jwtTokenUtil;
@@ -31,10 +31,15 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         String header = req.getHeader(HEADER_AUTHORIZATION);
         String username = null;
         String authToken = null;
+        String tokenId = null;
+        Claims claims = null;
         if (header != null && header.startsWith(TOKEN_PREFIX)) {
             authToken = header.replace(TOKEN_PREFIX,"");
             try {
-                username = jwtTokenUtil.getUsernameFromToken(authToken);
+                // the token is parsed and verified once, the claims are used for the rest of the request
+                claims = jwtTokenUtil.verifyToken(authToken);
+                username = claims.getSubject();
+                tokenId = jwtTokenUtil.getTokenId(claims, authToken);
             } catch (IllegalArgumentException e) {
                 logger.error("An error occurred during getting user name from token", e);
             } catch (ExpiredJwtException e) {
@@ -46,10 +51,11 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
         if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
 
-            CustomUserDetails customUserDetails = (CustomUserDetails) userService.loadUserByUsername(username);
+            PrincipalSnapshot principal = principalCache.getPrincipal(username, tokenId);
+            CustomUserDetails customUserDetails = principal != null ? new CustomUserDetails(principal) : null;
 
-            if (jwtTokenUtil.validateToken(authToken, customUserDetails)) {
-                UsernamePasswordAuthenticationToken authentication = jwtTokenUtil.getAuthentication(authToken, customUserDetails);
+            if (customUserDetails != null && jwtTokenUtil.validateToken(claims, customUserDetails)) {
+                UsernamePasswordAuthenticationToken authentication = jwtTokenUtil.getAuthentication(claims, customUserDetails);
                 authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(req));
                 SecurityContextHolder.getContext().setAuthentication(authentication);
             }
@@ -0,0 +1,83 @@
+package pl.databucket.security;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import pl.databucket.entity.User;
+import pl.databucket.repository.UserRepository;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the authenticated users keyed by the user name and the id of the token, so the authentication filter
+ * and the controllers do not load the user with its roles, teams and projects on every request. Changes of users,
+ * teams and projects clear it, the short time to live limits how long other instances of the application can
+ * see an outdated entry.
+ */
+@Component
+public class PrincipalCache {
+
+    private final UserRepository userRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, Entry> principals;
+
+    public PrincipalCache(UserRepository userRepository,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${databucket.principal-cache.size:10000}") int maxSize,
+                          @Value("${databucket.principal-cache.ttl-seconds:30}") long ttlSeconds) {
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.principals = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PrincipalCache.this.maxSize;
+            }
+        });
+    }
+
+    // Snapshot of the user with the given name, or null when the user does not exist
+    public PrincipalSnapshot getPrincipal(String username, String tokenId) {
+        String key = username + "/" + tokenId;
+
+        Entry entry = principals.get(key);
+        if (entry != null && !entry.isExpired())
+            return entry.snapshot;
+
+        // teams and projects are lazy, so the snapshot is taken inside of a transaction
+        PrincipalSnapshot snapshot = transactionTemplate.execute(status -> {
+            User user = userRepository.findByUsername(username);
+            return user != null ? new PrincipalSnapshot(user) : null;
+        });
+
+        if (snapshot != null)
+            principals.put(key, new Entry(snapshot, ttlMillis));
+
+        return snapshot;
+    }
+
+    public void invalidate() {
+        principals.clear();
+    }
+
+    private static class Entry {
+        private final PrincipalSnapshot snapshot;
+        private final long expiresAt;
+
+        Entry(PrincipalSnapshot snapshot, long ttlMillis) {
+            this.snapshot = snapshot;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pl.databucket.security;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import pl.databucket.configuration.Constants;
+import pl.databucket.entity.Project;
+import pl.databucket.entity.Role;
+import pl.databucket.entity.Team;
+import pl.databucket.entity.User;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable copy of the authenticated user with the ids of its roles, teams and projects. It is cached by the
+ * PrincipalCache and shared between requests, so it must not keep any reference to the entities.
+ */
+public final class PrincipalSnapshot {
+
+    private final long id;
+    private final String username;
+    private final boolean enabled;
+    private final Set<String> rolesNames;
+    private final Set<Short> rolesIds;
+    private final Set<Short> teamsIds;
+    private final Set<Integer> projectsIds;
+
+    public PrincipalSnapshot(User user) {
+        this.id = user.getId();
+        this.username = user.getUsername();
+        this.enabled = user.getEnabled() != null && user.getEnabled();
+        this.rolesNames = user.getRoles() != null ? Collections.unmodifiableSet(user.getRoles().stream().map(Role::getName).collect(Collectors.toSet())) : Collections.emptySet();
+        this.rolesIds = user.getRoles() != null ? Collections.unmodifiableSet(user.getRoles().stream().map(Role::getId).collect(Collectors.toSet())) : Collections.emptySet();
+        this.teamsIds = user.getTeams() != null ? Collections.unmodifiableSet(user.getTeams().stream().map(Team::getId).collect(Collectors.toSet())) : Collections.emptySet();
+        this.projectsIds = user.getProjects() != null ? Collections.unmodifiableSet(user.getProjects().stream().map(Project::getId).collect(Collectors.toSet())) : Collections.emptySet();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Set<String> getRolesNames() {
+        return rolesNames;
+    }
+
+    public Set<Short> getRolesIds() {
+        return rolesIds;
+    }
+
+    public Set<Short> getTeamsIds() {
+        return teamsIds;
+    }
+
+    public Set<Integer> getProjectsIds() {
+        return projectsIds;
+    }
+
+    public boolean isSuperUser() {
+        return rolesNames.contains(Constants.ROLE_SUPER);
+    }
+
+    public boolean isAdminUser() {
+        return rolesNames.contains(Constants.ROLE_ADMIN);
+    }
+
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return rolesNames.stream().map(name -> new SimpleGrantedAuthority("ROLE_" + name)).collect(Collectors.toSet());
+    }
+}
@@ -12,7 +12,11 @@ import org.springframework.stereotype.Component;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -28,19 +32,65 @@ public class TokenProvider implements Serializable {
     @Value("${jwt.expire.hours}")
     private long expireHours;
 
+    @Value("${jwt.verified-cache.size:10000}")
+    private int verifiedCacheSize;
+
+    // Recently verified tokens with their claims, an entry is used only until the token expires
+    private final transient Map<String, Claims> verifiedTokens = Collections.synchronizedMap(new LinkedHashMap<String, Claims>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Claims> eldest) {
+            return size() > verifiedCacheSize;
+        }
+    });
+
     public String getUsernameFromToken(String token) {
         return getClaimFromToken(token, Claims::getSubject);
     }
 
+    // Id of the token, tokens issued without it are identified by the issue time, tokens without both by their signature
+    public String getTokenIdFromToken(String token) {
+        return getTokenId(verifyToken(token), token);
+    }
+
+    public String getTokenId(Claims claims, String token) {
+        if (claims.getId() != null)
+            return claims.getId();
+        else if (claims.getIssuedAt() != null)
+            return String.valueOf(claims.getIssuedAt().getTime());
+        else
+            return token.substring(token.lastIndexOf('.') + 1);
+    }
+
     public Date getExpirationDateFromToken(String token) {
         return getClaimFromToken(token, Claims::getExpiration);
     }
 
     public <T> T getClaimFromToken(String token, Function<Claims, T> claimsResolver) {
-        final Claims claims = getAllClaimsFromToken(token);
+        final Claims claims = verifyToken(token);
         return claimsResolver.apply(claims);
     }
 
+    /**
+     * Verifies the signature and the expiration of the token and returns its claims. The claims of a verified
+     * token are kept until the token expires, so the same token sent again is not parsed. The returned claims
+     * are shared, they must not be modified.
+     */
+    public Claims verifyToken(String token) {
+        Claims claims = verifiedTokens.get(token);
+        if (claims != null) {
+            if (!isExpired(claims))
+                return claims;
+            verifiedTokens.remove(token);
+        }
+
+        // throws ExpiredJwtException when the token is expired
+        claims = getAllClaimsFromToken(token);
+        if (claims.getExpiration() != null)
+            verifiedTokens.put(token, claims);
+
+        return claims;
+    }
+
     private Claims getAllClaimsFromToken(String token) {
         return Jwts.parser()
                 .setSigningKey(singingKey)
@@ -48,9 +98,8 @@ public class TokenProvider implements Serializable {
                 .getBody();
     }
 
-    private Boolean isTokenExpired(String token) {
-        final Date expiration = getExpirationDateFromToken(token);
-        return expiration.before(new Date());
+    private boolean isExpired(Claims claims) {
+        return claims.getExpiration() != null && claims.getExpiration().before(new Date());
     }
 
     public String generateToken(Authentication authentication, Integer projectId) {
@@ -59,6 +108,7 @@ public class TokenProvider implements Serializable {
                 .collect(Collectors.joining(","));
         return Jwts.builder()
                 .setSubject(authentication.getName())
+                .setId(UUID.randomUUID().toString())
                 .claim(AUTHORITIES_KEY, authorities)
                 .claim(PROJECT_ID, projectId)
                 .signWith(SignatureAlgorithm.HS256, singingKey)
@@ -68,15 +118,18 @@ public class TokenProvider implements Serializable {
     }
 
     public Boolean validateToken(String token, UserDetails userDetails) {
-        final String username = getUsernameFromToken(token);
-        return (username.equals(userDetails.getUsername()) && !isTokenExpired(token));
+        return validateToken(verifyToken(token), userDetails);
+    }
+
+    public Boolean validateToken(Claims claims, UserDetails userDetails) {
+        return claims.getSubject().equals(userDetails.getUsername()) && !isExpired(claims);
     }
 
     UsernamePasswordAuthenticationToken getAuthentication(final String token, final CustomUserDetails customUserDetails) {
+        return getAuthentication(verifyToken(token), customUserDetails);
+    }
 
-        final JwtParser jwtParser = Jwts.parser().setSigningKey(singingKey);
-        final Jws<Claims> claimsJws = jwtParser.parseClaimsJws(token);
-        final Claims claims = claimsJws.getBody();
+    UsernamePasswordAuthenticationToken getAuthentication(final Claims claims, final CustomUserDetails customUserDetails) {
 
         customUserDetails.setProjectId((Integer) claims.get(PROJECT_ID));
 
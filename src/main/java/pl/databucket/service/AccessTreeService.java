@@ -0,0 +1,143 @@
+package pl.databucket.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import pl.databucket.dto.AccessTreeBucketDto;
+import pl.databucket.dto.AccessTreeGroupDto;
+import pl.databucket.dto.AccessTreeViewDto;
+import pl.databucket.entity.User;
+import pl.databucket.security.CustomUserDetails;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Builds the access tree (buckets, groups and views available for the user) with one statement per item type.
+ * The access rule is the same as in the services, but evaluated by the database instead of loading every item
+ * with its users, teams and role:
+ * the user is assigned directly, or (role is given ? the user has the role : the item has teams)
+ * and (the item has teams ? the user shares a team with the item : role is given).
+ */
+@Service
+public class AccessTreeService {
+
+    private final Logger logger = LoggerFactory.getLogger(AccessTreeService.class);
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    public List<AccessTreeBucketDto> getAccessTreeBuckets(User user) {
+        String sql = "SELECT b.bucket_id, b.bucket_name, b.icon_name, b.class_id"
+                + " FROM buckets b"
+                + " WHERE b.project_id = :projectId AND b.deleted = false"
+                + " AND " + accessCondition("b", "bucket_id", "buckets_users", "buckets_teams")
+                + " ORDER BY b.bucket_id";
+
+        logger.debug(sql);
+        return jdbcTemplate.query(sql, getParams(user), (rs, rowNum) -> {
+            AccessTreeBucketDto bucketDto = new AccessTreeBucketDto();
+            bucketDto.setId(rs.getLong("bucket_id"));
+            bucketDto.setName(rs.getString("bucket_name"));
+            bucketDto.setIconName(rs.getString("icon_name"));
+            bucketDto.setClassId(getLong(rs, "class_id"));
+            return bucketDto;
+        });
+    }
+
+    public List<AccessTreeGroupDto> getAccessTreeGroups(User user) {
+        String sql = "SELECT g.group_id, g.group_name, g.short_name,"
+                + " ARRAY(SELECT gb.bucket_id FROM groups_buckets gb WHERE gb.group_id = g.group_id) AS buckets_ids"
+                + " FROM \"groups\" g"
+                + " WHERE g.project_id = :projectId AND g.deleted = false"
+                + " AND " + accessCondition("g", "group_id", "groups_users", "groups_teams")
+                + " ORDER BY g.group_id";
+
+        logger.debug(sql);
+        return jdbcTemplate.query(sql, getParams(user), (rs, rowNum) -> {
+            AccessTreeGroupDto groupDto = new AccessTreeGroupDto();
+            groupDto.setId(rs.getLong("group_id"));
+            groupDto.setName(rs.getString("group_name"));
+            groupDto.setShortName(rs.getString("short_name"));
+            groupDto.setBucketsIds(getIds(rs, "buckets_ids"));
+            return groupDto;
+        });
+    }
+
+    public List<AccessTreeViewDto> getAccessTreeViews(User user) {
+        String sql = "SELECT v.view_id, v.view_name, v.description, v.columns_id, v.filter_id, v.features,"
+                + " ARRAY(SELECT vc.class_id FROM views_classes vc WHERE vc.view_id = v.view_id) AS classes_ids,"
+                + " ARRAY(SELECT vb.bucket_id FROM views_buckets vb WHERE vb.view_id = v.view_id) AS buckets_ids"
+                + " FROM views v"
+                + " WHERE v.project_id = :projectId AND v.deleted = false"
+                + " AND " + accessCondition("v", "view_id", "views_users", "views_teams")
+                + " ORDER BY v.view_id";
+
+        logger.debug(sql);
+        return jdbcTemplate.query(sql, getParams(user), (rs, rowNum) -> {
+            AccessTreeViewDto viewDto = new AccessTreeViewDto();
+            viewDto.setId(rs.getLong("view_id"));
+            viewDto.setName(rs.getString("view_name"));
+            viewDto.setDescription(rs.getString("description"));
+            viewDto.setColumnsId(rs.getLong("columns_id"));
+            viewDto.setFilterId(getLong(rs, "filter_id"));
+            viewDto.setFeaturesIds(getFeatures(rs, "features"));
+            viewDto.setClassesIds(getIds(rs, "classes_ids"));
+            viewDto.setBucketsIds(getIds(rs, "buckets_ids"));
+            return viewDto;
+        });
+    }
+
+    private MapSqlParameterSource getParams(User user) {
+        CustomUserDetails customUserDetails = (CustomUserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        return new MapSqlParameterSource()
+                .addValue("projectId", customUserDetails.getProjectId())
+                .addValue("userId", user.getId());
+    }
+
+    private static String accessCondition(String alias, String idColumn, String usersTable, String teamsTable) {
+        String id = alias + "." + idColumn;
+        String role = alias + ".role_id";
+        String hasTeams = "EXISTS (SELECT 1 FROM " + teamsTable + " it WHERE it." + idColumn + " = " + id + ")";
+
+        return "(EXISTS (SELECT 1 FROM " + usersTable + " iu WHERE iu." + idColumn + " = " + id + " AND iu.user_id = :userId)"
+                + " OR ((" + role + " IS NOT NULL OR " + hasTeams + ")"
+                + " AND (" + role + " IS NULL OR EXISTS (SELECT 1 FROM users_roles ur WHERE ur.user_id = :userId AND ur.role_id = " + role + "))"
+                + " AND (NOT " + hasTeams
+                + " OR EXISTS (SELECT 1 FROM " + teamsTable + " it JOIN users_teams ut ON ut.team_id = it.team_id"
+                + " WHERE it." + idColumn + " = " + id + " AND ut.user_id = :userId))))";
+    }
+
+    private static Long getLong(ResultSet rs, String column) throws SQLException {
+        long value = rs.getLong(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    // Empty relations are returned as null, the same as the entities do
+    private static Set<Long> getIds(ResultSet rs, String column) throws SQLException {
+        Array array = rs.getArray(column);
+        if (array == null)
+            return null;
+
+        Object[] values = (Object[]) array.getArray();
+        return values.length > 0 ? Arrays.stream(values).map(value -> ((Number) value).longValue()).collect(Collectors.toSet()) : null;
+    }
+
+    private static Short[] getFeatures(ResultSet rs, String column) throws SQLException {
+        Array array = rs.getArray(column);
+        if (array == null)
+            return null;
+
+        Object[] values = (Object[]) array.getArray();
+        return Arrays.stream(values).map(value -> ((Number) value).shortValue()).collect(Collectors.toList()).toArray(new Short[0]);
+    }
+}
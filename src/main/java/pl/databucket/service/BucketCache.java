@@ -0,0 +1,98 @@
+package pl.databucket.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import pl.databucket.entity.Bucket;
+import pl.databucket.repository.BucketRepository;
+import pl.databucket.security.CustomUserDetails;
+import pl.databucket.security.PrincipalSnapshot;
+import pl.databucket.service.data.BucketDescriptor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the buckets resolved by name (per project) and of the access decisions of users to buckets, used by the
+ * data endpoints. Changes of buckets, teams and users clear it, the time to live limits how long other instances
+ * of the application can see an outdated entry.
+ */
+@Component
+public class BucketCache {
+
+    private final BucketRepository bucketRepository;
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, Entry<BucketDescriptor>> buckets;
+    private final Map<String, Entry<Boolean>> accessDecisions;
+
+    public BucketCache(BucketRepository bucketRepository,
+                       @Value("${databucket.bucket-cache.size:10000}") int maxSize,
+                       @Value("${databucket.bucket-cache.ttl-seconds:60}") long ttlSeconds) {
+        this.bucketRepository = bucketRepository;
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.buckets = createLruMap();
+        this.accessDecisions = createLruMap();
+    }
+
+    private <T> Map<String, Entry<T>> createLruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    // Bucket of the current project with the given name, or null when it does not exist
+    public BucketDescriptor getBucket(String bucketName) {
+        Integer projectId = ((CustomUserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal()).getProjectId();
+        String key = projectId + "/" + bucketName;
+
+        Entry<BucketDescriptor> entry = buckets.get(key);
+        if (entry != null && !entry.isExpired())
+            return entry.value;
+
+        Bucket bucket = bucketRepository.findByProjectIdAndNameAndDeleted(projectId, bucketName, false);
+        if (bucket == null)
+            return null;
+
+        BucketDescriptor descriptor = new BucketDescriptor(bucket);
+        buckets.put(key, new Entry<>(descriptor, ttlMillis));
+        return descriptor;
+    }
+
+    public boolean hasUserAccessToBucket(BucketDescriptor bucketDescriptor, PrincipalSnapshot user) {
+        String key = user.getId() + "/" + bucketDescriptor.getId();
+
+        Entry<Boolean> entry = accessDecisions.get(key);
+        if (entry != null && !entry.isExpired())
+            return entry.value;
+
+        Bucket bucket = bucketRepository.findByIdAndDeleted(bucketDescriptor.getId(), false);
+        boolean access = bucket != null && BucketService.hasAccess(bucket, user);
+        accessDecisions.put(key, new Entry<>(access, ttlMillis));
+        return access;
+    }
+
+    public void invalidate() {
+        buckets.clear();
+        accessDecisions.clear();
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expiresAt;
+
+        Entry(T value, long ttlMillis) {
+            this.value = value;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
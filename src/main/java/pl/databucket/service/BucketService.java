@@ -3,12 +3,15 @@ package pl.databucket.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import pl.databucket.service.data.DataService;
+import pl.databucket.service.data.HistoryPartitionService;
 import pl.databucket.service.data.Query;
 import pl.databucket.dto.BucketDto;
 import pl.databucket.entity.*;
@@ -17,11 +20,12 @@ import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.ModifyByNullEntityIdException;
 import pl.databucket.repository.*;
 import pl.databucket.security.CustomUserDetails;
+import pl.databucket.security.PrincipalSnapshot;
 
-import java.util.Collections;
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
 
 @Service
 public class BucketService {
@@ -53,6 +57,20 @@ public class BucketService {
     @Autowired
     private NamedParameterJdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private BucketCache bucketCache;
+
+    @Autowired
+    private HistoryPartitionService historyPartitionService;
+
+    @Value("${databucket.history.snapshot-interval:20}")
+    private int historySnapshotInterval;
+
+    @PostConstruct
+    void checkConfiguration() {
+        checkSnapshotInterval(historySnapshotInterval);
+    }
+
     Logger logger = LoggerFactory.getLogger(BucketService.class);
 
     public Bucket createBucket(BucketDto bucketDto) throws ItemAlreadyExistsException, ItemNotFoundException {
@@ -63,6 +81,7 @@ public class BucketService {
         bucket.setName(bucketDto.getName());
         bucket.setDescription(bucketDto.getDescription());
         bucket.setHistory(bucketDto.isHistory());
+        bucket.setHistoryRetention(bucketDto.getHistoryRetention());
         bucket.setProtectedData(bucketDto.isProtectedData());
         bucket.setIconName(bucketDto.getIconName());
         bucket = bucketRepository.saveAndFlush(bucket);
@@ -108,6 +127,7 @@ public class BucketService {
                 + "tag_id bigint NULL,"
                 + "reserved boolean NOT NULL DEFAULT false,"
                 + "reserved_by character varying(50) DEFAULT NULL,"
+                + "reserved_until timestamp without time zone DEFAULT NULL,"
                 + "properties jsonb NOT NULL DEFAULT '{}'::jsonb,"
                 + "created_by character varying(50) NOT NULL,"
                 + "created_at timestamp without time zone NOT NULL DEFAULT current_timestamp,"
@@ -119,29 +139,23 @@ public class BucketService {
         logger.debug(sql);
         jdbcTemplate.getJdbcTemplate().execute(sql);
 
-        // Create table for history
-        sql = "CREATE TABLE \"" + bucket.getTableHistoryName() + "\" ("
-                + "id bigserial NOT NULL,"
-                + "data_id bigint NOT NULL,"
-                + "tag_id smallint DEFAULT NULL,"
-                + "reserved boolean DEFAULT NULL,"
-                + "properties jsonb DEFAULT NULL,"
-                + "modified_at timestamp without time zone NOT NULL DEFAULT current_timestamp,"
-                + "modified_by character varying(50),"
-                + "PRIMARY KEY (id),"
-                + "CONSTRAINT fk_tag_h_id FOREIGN KEY(data_id) REFERENCES \"" + bucket.getTableName() + "\"(data_id))";
-
+        // Index of the reservation leases, used by the expired leases sweeper
+        sql = DataService.getLeaseIndexSql(bucket.getTableName(), false);
         logger.debug(sql);
         jdbcTemplate.getJdbcTemplate().execute(sql);
 
+        // Create table for history
+        historyPartitionService.createHistoryTable(bucket.getTableName(), bucket.getTableHistoryName());
+
         createBeforeDeleteTrigger(bucket);
 
         // Create after insert and after update triggers if history is enabled
         if (bucket.isHistory()) {
             createAfterInsertTrigger(bucket);
-            createAfterUpdateTrigger(bucket);
+            createAfterUpdateTrigger(bucket, false);
         }
 
+        bucketCache.invalidate();
         return bucket;
     }
 
@@ -210,7 +224,7 @@ public class BucketService {
         if (bucket.isHistory() != bucketDto.isHistory()) {
             if (bucketDto.isHistory()) {
                 createAfterInsertTrigger(bucket);
-                createAfterUpdateTrigger(bucket);
+                createAfterUpdateTrigger(bucket, true);
                 bucket.setHistory(true);
             } else {
                 removeAfterInsertTrigger(bucket);
@@ -220,6 +234,7 @@ public class BucketService {
         }
 
         bucket.setProtectedData(bucketDto.isProtectedData());
+        bucket.setHistoryRetention(bucketDto.getHistoryRetention());
 
         if (bucketDto.getRoleId() != null) {
             Role role = roleRepository.getOne(bucketDto.getRoleId());
@@ -227,7 +242,9 @@ public class BucketService {
         } else
             bucket.setRole(null);
 
-        return bucketRepository.save(bucket);
+        bucket = bucketRepository.save(bucket);
+        bucketCache.invalidate();
+        return bucket;
     }
 
     public void deleteBucket(long bucketId) throws ItemNotFoundException {
@@ -256,6 +273,7 @@ public class BucketService {
 
         bucket.setDeleted(true);
         bucketRepository.save(bucket);
+        bucketCache.invalidate();
 
         // Drop bucket history table
         Query query = new Query(bucket.getTableHistoryName()).dropTable();
@@ -282,29 +300,65 @@ public class BucketService {
     private void createAfterInsertTrigger(Bucket bucket) {
         removeAfterInsertTrigger(bucket);
 
-        String sql = "CREATE TRIGGER trigger_after_insert\n" +
-                "AFTER INSERT\n" +
-                "ON \"" + bucket.getTableName() + "\"\n" +
-                "FOR EACH ROW\n" +
-                "EXECUTE PROCEDURE after_insert()";
-
+        String sql = getAfterInsertTriggerSql(bucket.getTableName());
         logger.debug(sql);
         jdbcTemplate.getJdbcTemplate().execute(sql);
     }
 
-    private void createAfterUpdateTrigger(Bucket bucket) {
+    // When the history is turned on again the changes made while it was off are not in the history, the next
+    // diffs applied to the last stored version would rebuild documents that never existed. The trigger is given
+    // the current time, the first version stored after it is whole.
+    private void createAfterUpdateTrigger(Bucket bucket, boolean resumed) {
         removeAfterUpdateTrigger(bucket);
 
-        String sql = "CREATE TRIGGER trigger_after_update\n" +
-                "AFTER UPDATE\n" +
-                "ON \"" + bucket.getTableName() + "\"\n" +
-                "FOR EACH ROW\n" +
-                "EXECUTE PROCEDURE after_update()";
-
+        String historySince = resumed ? jdbcTemplate.getJdbcTemplate().queryForObject("SELECT localtimestamp::text", String.class) : null;
+        String sql = getAfterUpdateTriggerSql(bucket.getTableName(), historySnapshotInterval, historySince);
         logger.debug(sql);
         jdbcTemplate.getJdbcTemplate().execute(sql);
     }
 
+    // The history triggers are statement level, so one INSERT ... SELECT from the transition table writes
+    // the history of all rows changed by the statement.
+    public static String getAfterInsertTriggerSql(String tableName) {
+        return "CREATE TRIGGER trigger_after_insert\n" +
+                "AFTER INSERT\n" +
+                "ON \"" + tableName + "\"\n" +
+                "REFERENCING NEW TABLE AS new_rows\n" +
+                "FOR EACH STATEMENT\n" +
+                "EXECUTE PROCEDURE after_insert_statement()";
+    }
+
+    // The interval is the divisor of mod() in the update trigger, so a value below 1 would fail every update
+    public static int checkSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 1)
+            throw new IllegalArgumentException("databucket.history.snapshot-interval must be at least 1, not " + snapshotInterval + "!");
+        return snapshotInterval;
+    }
+
+    // Every snapshotInterval-th version of the properties is stored whole, the others as a diff against the previous one
+    public static String getAfterUpdateTriggerSql(String tableName, int snapshotInterval) {
+        return getAfterUpdateTriggerSql(tableName, snapshotInterval, null);
+    }
+
+    // The versions stored before historySince (if not null) are not the base of a diff
+    public static String getAfterUpdateTriggerSql(String tableName, int snapshotInterval, String historySince) {
+        return "CREATE TRIGGER trigger_after_update\n" +
+                "AFTER UPDATE\n" +
+                "ON \"" + tableName + "\"\n" +
+                "REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows\n" +
+                "FOR EACH STATEMENT\n" +
+                "EXECUTE PROCEDURE after_update_statement(" + snapshotInterval + (historySince != null ? ", '" + historySince + "'" : "") + ")";
+    }
+
+    // Statements replacing the history triggers of the given bucket table with the current ones
+    public static List<String> getHistoryTriggersUpgradeSql(String tableName, int snapshotInterval) {
+        return Arrays.asList(
+                "DROP TRIGGER IF EXISTS trigger_after_insert on \"" + tableName + "\"",
+                getAfterInsertTriggerSql(tableName),
+                "DROP TRIGGER IF EXISTS trigger_after_update on \"" + tableName + "\"",
+                getAfterUpdateTriggerSql(tableName, snapshotInterval));
+    }
+
     private void removeBeforeDeleteTrigger(Bucket bucket) {
         String sql = "DROP TRIGGER IF EXISTS trigger_before_delete on \"" + bucket.getTableName() + "\"";
         logger.debug(sql);
@@ -323,18 +377,14 @@ public class BucketService {
         jdbcTemplate.getJdbcTemplate().execute(sql);
     }
 
-    public List<Bucket> getAccessTreeBuckets(User user) {
-        return bucketRepository.findAllByDeletedOrderById(false).stream().filter(bucket -> hasUserAccessToBucket(bucket, user)).collect(Collectors.toList());
-    }
-
-    public boolean hasUserAccessToBucket(Bucket bucket, User user) {
-        boolean accessForUser = bucket.getUsers().size() > 0 && bucket.getUsers().contains(user);
+    static boolean hasAccess(Bucket bucket, PrincipalSnapshot user) {
+        boolean accessForUser = bucket.getUsers().stream().anyMatch(bucketUser -> bucketUser.getId() == user.getId());
 
         if (accessForUser)
             return true;
         else {
-            boolean accessByRole = bucket.getRole() != null ? user.getRoles().contains(bucket.getRole()) : bucket.getTeams().size() > 0;
-            boolean accessByTeam = bucket.getTeams().size() > 0 ? !Collections.disjoint(bucket.getTeams(), user.getTeams()) : bucket.getRole() != null;
+            boolean accessByRole = bucket.getRole() != null ? user.getRolesIds().contains(bucket.getRole().getId()) : bucket.getTeams().size() > 0;
+            boolean accessByTeam = bucket.getTeams().size() > 0 ? bucket.getTeams().stream().anyMatch(team -> user.getTeamsIds().contains(team.getId())) : bucket.getRole() != null;
             return accessByRole && accessByTeam;
         }
     }
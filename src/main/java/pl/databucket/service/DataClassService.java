@@ -37,6 +37,9 @@ public class DataClassService {
     @Autowired
     private TaskRepository taskRepository;
 
+    @Autowired
+    private BucketCache bucketCache;
+
 
     public DataClass createDataClass(DataClassDto dataClassDto) throws ItemAlreadyExistsException {
         if (dataClassRepository.existsByNameAndDeleted(dataClassDto.getName(), false))
@@ -74,7 +77,10 @@ public class DataClassService {
             dataClass.setConfiguration(dataClassDto.getConfiguration());
         else
             dataClass.setConfiguration(null);
-        return dataClassRepository.save(dataClass);
+        dataClass = dataClassRepository.save(dataClass);
+        // the cached buckets keep the types of the class items
+        bucketCache.invalidate();
+        return dataClass;
     }
 
     public void deleteDataClass(long dataClassId) throws ItemNotFoundException, ItemAlreadyUsedException {
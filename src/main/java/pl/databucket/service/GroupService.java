@@ -12,7 +12,6 @@ import pl.databucket.exception.SomeItemsNotFoundException;
 import pl.databucket.repository.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Service
 public class GroupService {
@@ -120,20 +119,4 @@ public class GroupService {
         group.setDeleted(true);
         groupRepository.save(group);
     }
-
-    public List<Group> getAccessTreeGroups(User user) {
-        return groupRepository.findAllByDeletedOrderById(false).stream().filter(group -> hasUserAccessToGroup(group, user)).collect(Collectors.toList());
-    }
-
-    private boolean hasUserAccessToGroup(Group group, User user) {
-        boolean accessForUser = group.getUsers().size() > 0 && group.getUsers().contains(user);
-
-        if (accessForUser)
-            return true;
-        else {
-            boolean accessByRole = group.getRole() != null ? user.getRoles().contains(group.getRole()) : group.getTeams().size() > 0;
-            boolean accessByTeam = group.getTeams().size() > 0 ? !Collections.disjoint(group.getTeams(), user.getTeams()) : group.getRole() != null;
-            return accessByRole && accessByTeam;
-        }
-    }
 }
@@ -9,6 +9,7 @@ import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.ModifyByNullEntityIdException;
 import pl.databucket.repository.ProjectRepository;
 import pl.databucket.repository.UserRepository;
+import pl.databucket.security.PrincipalCache;
 
 import java.util.HashSet;
 import java.util.List;
@@ -23,6 +24,9 @@ public class ManageProjectService {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private PrincipalCache principalCache;
+
     public Project createProject(ManageProjectDto manageProjectDto) {
         Project project = new Project();
         project.setName(manageProjectDto.getName());
@@ -42,7 +46,9 @@ public class ManageProjectService {
             project.setUsers(new HashSet<>(users));
         }
 
-        return projectRepository.save(project);
+        project = projectRepository.save(project);
+        principalCache.invalidate();
+        return project;
     }
 
     public List<Project> getProjects() {
@@ -79,7 +85,9 @@ public class ManageProjectService {
                 project.setUsers(new HashSet<>(users));
             }
         }
-        return projectRepository.save(project);
+        project = projectRepository.save(project);
+        principalCache.invalidate();
+        return project;
     }
 
     public void deleteProject(int projectId) throws ItemNotFoundException {
@@ -99,6 +107,7 @@ public class ManageProjectService {
 
         project.setDeleted(true);
         projectRepository.save(project);
+        principalCache.invalidate();
     }
 
 }
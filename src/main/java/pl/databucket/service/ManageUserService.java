@@ -12,6 +12,7 @@ import pl.databucket.exception.SomeItemsNotFoundException;
 import pl.databucket.repository.ProjectRepository;
 import pl.databucket.repository.RoleRepository;
 import pl.databucket.repository.UserRepository;
+import pl.databucket.security.PrincipalCache;
 
 import java.util.HashSet;
 import java.util.List;
@@ -32,6 +33,12 @@ public class ManageUserService {
     @Autowired
     private BCryptPasswordEncoder bcryptEncoder;
 
+    @Autowired
+    private BucketCache bucketCache;
+
+    @Autowired
+    private PrincipalCache principalCache;
+
 
     public List<User> getUsers() {
         return userRepository.findAllByOrderById();
@@ -54,7 +61,10 @@ public class ManageUserService {
             newUser.setProjects(new HashSet<>(projects));
         }
 
-        return userRepository.save(newUser);
+        newUser = userRepository.save(newUser);
+        bucketCache.invalidate();
+        principalCache.invalidate();
+        return newUser;
     }
 
 
@@ -73,7 +83,10 @@ public class ManageUserService {
             user.setProjects(new HashSet<>(projects));
         }
 
-        return userRepository.save(user);
+        user = userRepository.save(user);
+        bucketCache.invalidate();
+        principalCache.invalidate();
+        return user;
     }
 
     public void resetPassword(AuthDtoRequest userDto) {
@@ -9,6 +9,7 @@ import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.ModifyByNullEntityIdException;
 import pl.databucket.exception.SomeItemsNotFoundException;
 import pl.databucket.repository.*;
+import pl.databucket.security.PrincipalCache;
 
 import java.util.HashSet;
 import java.util.List;
@@ -31,6 +32,12 @@ public class TeamService {
     @Autowired
     private ViewRepository viewRepository;
 
+    @Autowired
+    private BucketCache bucketCache;
+
+    @Autowired
+    private PrincipalCache principalCache;
+
     private final Misc misc = new Misc();
 
     public Team createTeam(TeamDto teamDto) throws ItemAlreadyExistsException, SomeItemsNotFoundException {
@@ -48,7 +55,10 @@ public class TeamService {
             team.setUsers(new HashSet<>(users));
         }
 
-        return teamRepository.save(team);
+        team = teamRepository.save(team);
+        bucketCache.invalidate();
+        principalCache.invalidate();
+        return team;
     }
 
     public List<Team> getTeams() {
@@ -81,7 +91,10 @@ public class TeamService {
             team.setUsers(new HashSet<>(users));
         }
 
-        return teamRepository.save(team);
+        team = teamRepository.save(team);
+        bucketCache.invalidate();
+        principalCache.invalidate();
+        return team;
     }
 
     public void deleteTeam(short teamId) throws ItemNotFoundException {
@@ -112,5 +125,7 @@ public class TeamService {
 
         team.setDeleted(true);
         teamRepository.save(team);
+        bucketCache.invalidate();
+        principalCache.invalidate();
     }
 }
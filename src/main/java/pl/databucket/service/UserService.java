@@ -16,6 +16,8 @@ import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.SomeItemsNotFoundException;
 import pl.databucket.repository.*;
 import pl.databucket.security.CustomUserDetails;
+import pl.databucket.security.PrincipalCache;
+import pl.databucket.security.PrincipalSnapshot;
 import java.util.*;
 
 
@@ -34,6 +36,12 @@ public class UserService implements UserDetailsService {
     @Autowired
     private BCryptPasswordEncoder bcryptEncoder;
 
+    @Autowired
+    private BucketCache bucketCache;
+
+    @Autowired
+    private PrincipalCache principalCache;
+
     // This method is used every time when authorized user want to do something.
     // This method must be as light as possible, so most of logic is moved into public controller when the user is trying to login
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
@@ -55,6 +63,11 @@ public class UserService implements UserDetailsService {
         return getUserByUsername(SecurityContextHolder.getContext().getAuthentication().getName());
     }
 
+    // Snapshot of the current user taken by the authentication filter, it does not query the database
+    public PrincipalSnapshot getCurrentPrincipal() {
+        return ((CustomUserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal()).getPrincipal();
+    }
+
     private Set<SimpleGrantedAuthority> getAuthority(User user) {
         Set<SimpleGrantedAuthority> authorities = new HashSet<>();
         user.getRoles().forEach(role -> authorities.add(new SimpleGrantedAuthority("ROLE_" + role.getName())));
@@ -78,7 +91,10 @@ public class UserService implements UserDetailsService {
             user.setTeams(new HashSet<>(teams));
         }
 
-        return userRepository.save(user);
+        user = userRepository.save(user);
+        bucketCache.invalidate();
+        principalCache.invalidate();
+        return user;
     }
 
     public void changePassword(ChangePasswordDtoRequest changePasswordDtoRequest) {
@@ -8,10 +8,8 @@ import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.ModifyByNullEntityIdException;
 import pl.databucket.repository.*;
 
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
 
 
 @Service
@@ -174,20 +172,4 @@ public class ViewService {
         view.setDeleted(true);
         viewRepository.save(view);
     }
-
-    public List<View> getAccessTreeViews(User user) {
-        return viewRepository.findAllByDeletedOrderById(false).stream().filter(view -> hasUserAccessToView(view, user)).collect(Collectors.toList());
-    }
-
-    private boolean hasUserAccessToView(View view, User user) {
-        boolean accessForUser = view.getUsers().size() > 0 && view.getUsers().contains(user);
-
-        if (accessForUser)
-            return true;
-        else {
-            boolean accessByRole = view.getRole() != null ? user.getRoles().contains(view.getRole()) : view.getTeams().size() > 0;
-            boolean accessByTeam = view.getTeams().size() > 0 ? !Collections.disjoint(view.getTeams(), user.getTeams()) : view.getRole() != null;
-            return accessByRole && accessByTeam;
-        }
-    }
 }
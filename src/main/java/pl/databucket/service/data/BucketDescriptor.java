@@ -0,0 +1,48 @@
+package pl.databucket.service.data;
+
+import lombok.Getter;
+import pl.databucket.dto.DataClassItemDto;
+import pl.databucket.entity.Bucket;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the bucket settings needed to operate on its data. It is detached from the persistence
+ * context, so it can be cached and shared between requests.
+ */
+@Getter
+public final class BucketDescriptor {
+
+    private final long id;
+    private final Integer projectId;
+    private final String name;
+    private final boolean history;
+    private final boolean protectedData;
+    // types of the properties declared by the class of the bucket, by json path ($.group.item)
+    private final Map<String, String> propertyTypes;
+
+    public BucketDescriptor(Bucket bucket) {
+        this.id = bucket.getId();
+        this.projectId = bucket.getProjectId();
+        this.name = bucket.getName();
+        this.history = bucket.isHistory();
+        this.protectedData = bucket.isProtectedData();
+
+        Map<String, String> types = new HashMap<>();
+        if (bucket.getDataClass() != null && bucket.getDataClass().getConfiguration() != null)
+            for (DataClassItemDto item : bucket.getDataClass().getConfiguration())
+                if (item.getPath() != null && item.getType() != null)
+                    types.put(item.getPath().startsWith("$.") ? item.getPath() : "$." + item.getPath(), item.getType());
+        this.propertyTypes = Collections.unmodifiableMap(types);
+    }
+
+    public String getTableName() {
+        return String.format("x-bucket-%d", id);
+    }
+
+    public String getTableHistoryName() {
+        return getTableName() + "-h";
+    }
+}
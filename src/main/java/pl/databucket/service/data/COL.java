@@ -12,6 +12,12 @@ public class COL {
 	public static final String DATA_ID = "data_id";
 	public static final String RESERVED = "reserved";
 	public static final String RESERVED_BY = "reserved_by";
+	public static final String RESERVED_UNTIL = "reserved_until";
 	public static final String PROPERTIES = "properties";
+	public static final String PROPERTIES_DIFF = "properties_diff";
+	public static final String PROPERTIES_VERSION = "properties_version";
 	public static final String ID = "id";
+	public static final String CURSOR_VALUE = "cursor_value";
+	public static final String CURSOR_ID = "cursor_id";
+	public static final String TOTAL_COUNT = "total_count";
 }
@@ -0,0 +1,18 @@
+package pl.databucket.service.data;
+
+public enum CountMode {
+
+	exact,      // count(*) with the same rules as the data
+	none,       // the total is not returned
+	estimate,   // row estimate of the planner
+	cached;     // exact count remembered until the bucket is modified
+
+	public static CountMode fromString(String text) {
+		for (CountMode countMode : CountMode.values()) {
+			if (countMode.name().equalsIgnoreCase(text)) {
+				return countMode;
+			}
+		}
+		throw new IllegalArgumentException("Unknown count mode '" + text + "'!");
+	}
+}
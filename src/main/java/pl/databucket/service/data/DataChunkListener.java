@@ -0,0 +1,10 @@
+package pl.databucket.service.data;
+
+/**
+ * Receives the progress of an operation executed in chunks of data_id. Returning false stops the operation after
+ * the current chunk.
+ */
+public interface DataChunkListener {
+
+    boolean onChunk(long lastDataId, int count);
+}
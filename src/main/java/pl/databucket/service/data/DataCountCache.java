@@ -0,0 +1,76 @@
+package pl.databucket.service.data;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the number of rows matching the given rules per bucket. All counts of a bucket are dropped
+ * each time the bucket data is modified by this application, the time to live limits how long the changes
+ * made by other instances of the application are not seen.
+ */
+@Component
+public class DataCountCache {
+
+    private final long ttlMillis;
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private final Map<String, Entry> counts;
+
+    public DataCountCache(@Value("${databucket.count-cache.size:10000}") int maxSize,
+                          @Value("${databucket.count-cache.ttl-seconds:60}") long ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000;
+        this.counts = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    public static String getKey(String countQuery, Map<String, Object> paramMap) {
+        return countQuery + new TreeMap<>(paramMap);
+    }
+
+    // The version has to be taken before counting, so a count computed during a modification is not stored
+    public long getVersion(String tableName) {
+        return versions.getOrDefault(tableName, 0L);
+    }
+
+    public Long get(String tableName, String key) {
+        Entry entry = counts.get(tableName + "/" + key);
+        if (entry != null && !entry.isExpired() && entry.version == getVersion(tableName))
+            return entry.count;
+        return null;
+    }
+
+    public void put(String tableName, long version, String key, long count) {
+        if (version == getVersion(tableName))
+            counts.put(tableName + "/" + key, new Entry(count, version, ttlMillis));
+    }
+
+    // The counts of older versions are not returned any more and leave the cache as the least recently used
+    public void invalidate(String tableName) {
+        versions.merge(tableName, 1L, Long::sum);
+    }
+
+    private static class Entry {
+        private final long count;
+        private final long version;
+        private final long expiresAt;
+
+        Entry(long count, long version, long ttlMillis) {
+            this.count = count;
+            this.version = version;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package pl.databucket.service.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import pl.databucket.configuration.Json;
+
+/**
+ * Position of the last returned row for keyset pagination: the value of the sort key (as text) and the data_id.
+ * It is handed to the client as an opaque string.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class DataCursor {
+
+    private static final ObjectMapper mapper = Json.MAPPER;
+
+    private String value;
+    private long id;
+
+    public DataCursor(String value, long id) {
+        this.value = value;
+        this.id = id;
+    }
+
+    public String encode() {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mapper.writeValueAsBytes(this));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static DataCursor decode(String cursor) {
+        try {
+            return mapper.readValue(Base64.getUrlDecoder().decode(cursor), DataCursor.class);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("The given cursor is not valid!");
+        }
+    }
+}
@@ -1,50 +1,126 @@
 package pl.databucket.service.data;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.postgresql.util.PGobject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.PlatformTransactionManager;
-import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import pl.databucket.configuration.Json;
 import pl.databucket.dto.*;
-import pl.databucket.entity.Bucket;
-import pl.databucket.entity.User;
+import pl.databucket.security.PrincipalSnapshot;
 import pl.databucket.exception.ConditionNotAllowedException;
 import pl.databucket.exception.ItemNotFoundException;
 import pl.databucket.exception.UnexpectedException;
 import pl.databucket.exception.UnknownColumnException;
+import pl.databucket.mapper.CustomColumnRowMapper;
 import pl.databucket.mapper.DataRowMapper;
+import pl.databucket.service.BucketService;
 import pl.databucket.service.ServiceUtils;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 
 @Service
 public class DataService {
 
+    // keeps a single multi-row INSERT below the limit of bind parameters
+    private static final int BULK_INSERT_CHUNK_SIZE = 1000;
+    // number of rows fetched at once by the export cursor
+    private static final int EXPORT_FETCH_SIZE = 1000;
+
     private final PlatformTransactionManager transactionManager;
     private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate exportJdbcTemplate;
     private final ServiceUtils serviceUtils;
+    private final DataCountCache countCache;
+    private final QueryTemplateCache templateCache;
+    private final StatementStatistics statementStatistics;
+    private final IndexAdvisor indexAdvisor;
+    private final boolean bindPropertyPaths;
+    private final int historySnapshotInterval;
+    private final DataRowMapper dataRowMapper;
+
+    @Value("${databucket.lease.sweep-batch-size:500}")
+    private int leaseSweepBatchSize;
+
+    // Tables which can have reservation leases, the only ones visited by the sweeper
+    private final Set<String> leaseTables = ConcurrentHashMap.newKeySet();
+
+    @Value("${databucket.data.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${databucket.data.sync-delete-limit:1000}")
+    private int syncDeleteLimit;
+
     Logger logger = LoggerFactory.getLogger(DataService.class);
 
-    public DataService(NamedParameterJdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+    public DataService(NamedParameterJdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, DataCountCache countCache, QueryTemplateCache templateCache,
+                       StatementStatistics statementStatistics, IndexAdvisor indexAdvisor, @Value("${databucket.query.bind-property-paths:false}") boolean bindPropertyPaths,
+                       @Value("${databucket.history.snapshot-interval:20}") int historySnapshotInterval,
+                       @Value("${databucket.data.raw-properties:true}") boolean rawProperties) {
         this.jdbcTemplate = jdbcTemplate;
         this.transactionManager = transactionManager;
+        this.countCache = countCache;
+        this.templateCache = templateCache;
+        this.statementStatistics = statementStatistics;
+        this.indexAdvisor = indexAdvisor;
+        this.bindPropertyPaths = bindPropertyPaths;
+        if (bindPropertyPaths)
+            logger.warn("The property paths are bound as parameters, the property indexes are used only with plan_cache_mode = force_custom_plan");
+        this.historySnapshotInterval = BucketService.checkSnapshotInterval(historySnapshotInterval);
+        this.dataRowMapper = new DataRowMapper(rawProperties);
         this.serviceUtils = new ServiceUtils();
+
+        JdbcTemplate exportTemplate = new JdbcTemplate(jdbcTemplate.getJdbcTemplate().getDataSource());
+        exportTemplate.setFetchSize(EXPORT_FETCH_SIZE);
+        this.exportJdbcTemplate = new NamedParameterJdbcTemplate(exportTemplate);
+    }
+
+    private Query newQuery(String table) {
+        return new Query(table).bindPropertyPaths(bindPropertyPaths);
+    }
+
+    // Generates the SQL of a query that is about to be executed and counts it for the statement statistics
+    private String toSql(Query query, Map<String, Object> paramMap) {
+        String sql = query.toString(logger, paramMap);
+        statementStatistics.record(sql);
+        return sql;
+    }
+
+    // Passes the property conditions and sorts of an executed query to the index advisor
+    private void recordPredicates(BucketDescriptor bucket, Query query, long startNanos, int rows) {
+        if (!query.getPredicates().isEmpty())
+            indexAdvisor.record(bucket.getTableName(), query.getPredicates(), (System.nanoTime() - startNanos) / 1000000, rows);
+    }
+
+    private long queryCount(String countQuery, Map<String, Object> paramMap) {
+        statementStatistics.record(countQuery);
+        return jdbcTemplate.queryForObject(countQuery, paramMap, Long.TYPE);
     }
 
 
-    public DataDto createData(User user, Bucket bucket, DataCreateDto dataCreateDto) throws JsonProcessingException, UnexpectedException, ItemNotFoundException, UnknownColumnException, ConditionNotAllowedException, SQLException {
+    public DataDto createData(PrincipalSnapshot user, BucketDescriptor bucket, DataCreateDto dataCreateDto) throws JsonProcessingException, UnexpectedException, ItemNotFoundException, UnknownColumnException, ConditionNotAllowedException, SQLException {
 
         MapSqlParameterSource paramMap = new MapSqlParameterSource();
         if (dataCreateDto.getTagId() != null)
@@ -60,13 +136,55 @@ public class DataService {
         paramMap.addValue(COL.PROPERTIES, serviceUtils.javaObjectToPGObject(dataCreateDto.getProperties()));
 
         KeyHolder keyHolder = new GeneratedKeyHolder();
-        Query query = new Query(bucket.getTableName()).insertIntoValues(paramMap);
-        jdbcTemplate.update(query.toString(logger, paramMap.getValues()), paramMap, keyHolder, new String[]{COL.DATA_ID});
+        Query query = newQuery(bucket.getTableName()).insertIntoValues(paramMap);
+        jdbcTemplate.update(toSql(query, paramMap.getValues()), paramMap, keyHolder, new String[]{COL.DATA_ID});
+        countCache.invalidate(bucket.getTableName());
         long id = keyHolder.getKey().intValue();
         return getData(user, bucket, id);
     }
 
-    public DataDto getData(User user, Bucket bucket, long id) throws UnknownColumnException, ConditionNotAllowedException {
+    public List<DataDto> createData(PrincipalSnapshot user, BucketDescriptor bucket, List<DataCreateDto> dataCreateDtoList) throws JsonProcessingException, SQLException {
+        if (dataCreateDtoList.isEmpty())
+            return new ArrayList<>();
+
+        // prepare all chunks before opening the transaction
+        List<String> queries = new ArrayList<>();
+        List<Map<String, Object>> paramMaps = new ArrayList<>();
+        for (int from = 0; from < dataCreateDtoList.size(); from += BULK_INSERT_CHUNK_SIZE) {
+            List<DataCreateDto> chunk = dataCreateDtoList.subList(from, Math.min(from + BULK_INSERT_CHUNK_SIZE, dataCreateDtoList.size()));
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (DataCreateDto dataCreateDto : chunk) {
+                boolean reserved = dataCreateDto.getReserved() != null && dataCreateDto.getReserved();
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put(COL.TAG_ID, dataCreateDto.getTagId());
+                row.put(COL.RESERVED, reserved);
+                row.put(COL.RESERVED_BY, reserved ? user.getUsername() : null);
+                row.put(COL.PROPERTIES, serviceUtils.javaObjectToPGObject(dataCreateDto.getProperties() != null ? dataCreateDto.getProperties() : new RawJson("{}")));
+                row.put(COL.CREATED_BY, user.getUsername());
+                row.put(COL.MODIFIED_BY, user.getUsername());
+                rows.add(row);
+            }
+
+            Map<String, Object> paramMap = new HashMap<>();
+            Query query = newQuery(bucket.getTableName())
+                    .insertIntoValues(rows, paramMap)
+                    .returning("*");
+            queries.add(toSql(query, paramMap));
+            paramMaps.add(paramMap);
+        }
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        List<DataDto> createdData = transactionTemplate.execute(status -> {
+            List<DataDto> result = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++)
+                result.addAll(jdbcTemplate.query(queries.get(i), paramMaps.get(i), dataRowMapper));
+            return result;
+        });
+        countCache.invalidate(bucket.getTableName());
+        return createdData;
+    }
+
+    public DataDto getData(PrincipalSnapshot user, BucketDescriptor bucket, long id) throws UnknownColumnException, ConditionNotAllowedException {
         List<Condition> conditions = new ArrayList<>();
         conditions.add(new Condition(COL.DATA_ID, Operator.equal, id));
 
@@ -74,15 +192,15 @@ public class DataService {
             conditions.add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
         Map<String, Object> paramMap = new HashMap<>();
-        Query queryData = new Query(bucket.getTableName())
+        Query queryData = newQuery(bucket.getTableName())
                 .select("*")
                 .from()
                 .where(conditions, paramMap);
 
-        return jdbcTemplate.queryForObject(queryData.toString(logger, paramMap), paramMap, new DataRowMapper());
+        return jdbcTemplate.queryForObject(toSql(queryData, paramMap), paramMap, dataRowMapper);
     }
 
-    public List<DataDto> getData(User user, Bucket bucket, List<Long> ids) throws UnknownColumnException, ConditionNotAllowedException {
+    public List<DataDto> getData(PrincipalSnapshot user, BucketDescriptor bucket, List<Long> ids) throws UnknownColumnException, ConditionNotAllowedException {
         List<Condition> conditions = new ArrayList<>();
         conditions.add(new Condition(COL.DATA_ID, Operator.in, ids));
 
@@ -90,15 +208,15 @@ public class DataService {
             conditions.add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
         Map<String, Object> paramMap = new HashMap<>();
-        Query queryData = new Query(bucket.getTableName())
+        Query queryData = newQuery(bucket.getTableName())
                 .select("*")
                 .from()
                 .where(conditions, paramMap);
 
-        return jdbcTemplate.query(queryData.toString(logger, paramMap), paramMap, new DataRowMapper());
+        return jdbcTemplate.query(toSql(queryData, paramMap), paramMap, dataRowMapper);
     }
 
-    public Map<ResultField, Object> getData(User user, Bucket bucket, Optional<List<CustomColumnDto>> inColumns, QueryRule queryRule, Optional<Integer> page, Optional<Integer> limit, Optional<String> sort) throws ItemNotFoundException, UnknownColumnException, UnexpectedException, ConditionNotAllowedException {
+    public Map<ResultField, Object> getData(PrincipalSnapshot user, BucketDescriptor bucket, Optional<List<CustomColumnDto>> inColumns, QueryRule queryRule, Optional<Integer> page, Optional<Integer> limit, Optional<String> sort, Optional<String> cursor, CountMode countMode) throws ItemNotFoundException, UnknownColumnException, UnexpectedException, ConditionNotAllowedException {
 
         List<CustomColumnDto> columns = null;
         Map<String, Object> paramMap = new HashMap<>();
@@ -125,32 +243,207 @@ public class DataService {
         if (bucket.isProtectedData() && !user.isAdminUser())
             queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
-        Query queryCount = new Query(bucket.getTableName())
+        Query queryCount = newQuery(bucket.getTableName())
                 .select(COL.COUNT)
                 .from()
-                .where(queryRule, paramMap);
+                .where(queryRule, paramMap, templateCache);
+
+        // at this point the paramMap contains only values of the rules
+        String countQuery = queryCount.toString(logger, paramMap);
+        String countKey = DataCountCache.getKey(countQuery, paramMap);
+
+        // the exact count is read together with the page, unless the page is positioned by a cursor
+        boolean countInPage = countMode == CountMode.exact && !cursor.isPresent() && limit.isPresent() && limit.get() > 0;
+
+        Query queryData = newQuery(bucket.getTableName())
+                .propertyTypes(bucket.getPropertyTypes())
+                .selectData(columns);
+
+        if (countInPage)
+            queryData.selectTotalCount();
+
+        if (cursor.isPresent()) {
+            // keyset pagination, an empty cursor means the first page
+            String sortValue = sort.orElse("id");
+            queryData.selectCursor(sortValue)
+                    .from()
+                    .where(queryRule, paramMap, templateCache)
+                    .seek(paramMap, sortValue, cursor.get().isEmpty() ? null : DataCursor.decode(cursor.get()))
+                    .orderByCursor(sortValue)
+                    .limitPage(paramMap, limit, Optional.empty());
+        } else
+            queryData.from()
+                    .where(queryRule, paramMap, templateCache)
+                    .orderBy(sort)
+                    .limitPage(paramMap, limit, page);
+
+        DataCursor[] lastCursor = new DataCursor[1];
+        Long[] pageCount = new Long[1];
+        List<?> data;
+        long start = System.nanoTime();
+        if (inColumns.isPresent()) {
+            List<Map<String, Object>> dataList = jdbcTemplate.query(toSql(queryData, paramMap), paramMap, new CustomColumnRowMapper());
+            for (Map<String, Object> row : dataList) {
+                if (cursor.isPresent())
+                    lastCursor[0] = new DataCursor((String) row.remove(COL.CURSOR_VALUE), ((Number) row.remove(COL.CURSOR_ID)).longValue());
+                if (countInPage)
+                    pageCount[0] = ((Number) row.remove(COL.TOTAL_COUNT)).longValue();
+            }
+            data = dataList;
+        } else {
+            data = jdbcTemplate.query(toSql(queryData, paramMap), paramMap, (rs, rowNum) -> {
+                if (cursor.isPresent())
+                    lastCursor[0] = new DataCursor(rs.getString(COL.CURSOR_VALUE), rs.getLong(COL.CURSOR_ID));
+                if (countInPage)
+                    pageCount[0] = rs.getLong(COL.TOTAL_COUNT);
+                return dataRowMapper.mapRow(rs, rowNum);
+            });
+        }
+        recordPredicates(bucket, queryData, start, data.size());
+
+        Map<ResultField, Object> result = new HashMap<>();
+        result.put(ResultField.DATA, data);
+
+        switch (countMode) {
+            case exact:
+                if (pageCount[0] != null)
+                    result.put(ResultField.TOTAL, pageCount[0]);
+                else if (countInPage && page.orElse(1) <= 1)
+                    result.put(ResultField.TOTAL, 0L); // the first page is empty
+                else
+                    result.put(ResultField.TOTAL, queryCount(countQuery, paramMap));
+                break;
+            case estimate:
+                result.put(ResultField.TOTAL, estimateCount(bucket, queryRule));
+                break;
+            case cached:
+                Long count = countCache.get(bucket.getTableName(), countKey);
+                if (count == null) {
+                    long version = countCache.getVersion(bucket.getTableName());
+                    count = queryCount(countQuery, paramMap);
+                    countCache.put(bucket.getTableName(), version, countKey, count);
+                }
+                result.put(ResultField.TOTAL, count);
+                break;
+            case none:
+                break;
+        }
+
+        // a full page means there can be more rows after the last one
+        if (cursor.isPresent() && limit.isPresent() && limit.get() > 0 && data.size() == limit.get())
+            result.put(ResultField.NEXT, lastCursor[0].encode());
+
+        return result;
+    }
+
+    private long estimateCount(BucketDescriptor bucket, QueryRule queryRule) throws UnknownColumnException, ConditionNotAllowedException, UnexpectedException {
+        Map<String, Object> paramMap = new HashMap<>();
 
-        Query queryData = new Query(bucket.getTableName())
-                .selectData(columns)
+        // without rules the table statistics are enough
+        if (queryRule.getConditions().isEmpty() && queryRule.getQueryRules().isEmpty()) {
+            paramMap.put("table", "\"" + bucket.getTableName() + "\"");
+            Long count = jdbcTemplate.queryForObject("SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(:table)", paramMap, Long.class);
+            return count != null ? Math.max(count, 0) : 0;
+        }
+
+        Query query = newQuery(bucket.getTableName())
+                .select("1")
                 .from()
-                .where(queryRule, paramMap)
-                .orderBy(sort)
-                .limitPage(paramMap, limit, page);
+                .where(queryRule, paramMap, templateCache);
 
-        long count = jdbcTemplate.queryForObject(queryCount.toString(logger, paramMap), paramMap, Long.TYPE);
-        Map<ResultField, Object> result = new HashMap<>();
-        result.put(ResultField.TOTAL, count);
+        String plan = jdbcTemplate.queryForObject("EXPLAIN (FORMAT JSON) " + query.toString(logger, paramMap), paramMap, String.class);
+        try {
+            return Json.MAPPER.readTree(plan).get(0).get("Plan").get("Plan Rows").asLong();
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
+    }
 
-        if (inColumns.isPresent()) {
-            List<Map<String, Object>> dataList = jdbcTemplate.queryForList(queryData.toString(logger, paramMap), paramMap);
-            serviceUtils.convertPropertiesColumns(dataList);
-            result.put(ResultField.DATA, dataList);
-        } else {
-            List<DataDto> dataList = jdbcTemplate.query(queryData.toString(logger, paramMap), paramMap, new DataRowMapper());
-            result.put(ResultField.DATA, dataList);
+    public StreamingResponseBody exportData(PrincipalSnapshot user, BucketDescriptor bucket, Optional<List<CustomColumnDto>> inColumns, QueryRule queryRule, Optional<String> sort, ExportFormat format) throws UnknownColumnException, ConditionNotAllowedException {
+        if (bucket.isProtectedData() && !user.isAdminUser())
+            queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
+
+        // the query is prepared here, so wrong rules are reported before the response is started
+        Map<String, Object> paramMap = new HashMap<>();
+        String query = newQuery(bucket.getTableName())
+                .propertyTypes(bucket.getPropertyTypes())
+                .selectData(inColumns.orElse(null))
+                .from()
+                .where(queryRule, paramMap, templateCache)
+                .orderBy(sort.orElse("id"))
+                .toString(logger, paramMap);
+        statementStatistics.record(query);
+
+        return outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+
+            // Postgres streams rows through a cursor only inside a transaction
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.setReadOnly(true);
+            try {
+                transactionTemplate.execute(status -> exportJdbcTemplate.query(query, paramMap, (ResultSetExtractor<Void>) rs -> {
+                    try {
+                        if (format == ExportFormat.csv)
+                            writeCsv(rs, writer);
+                        else
+                            writeNdjson(rs, writer, inColumns.isPresent());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                }));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        };
+    }
+
+    private void writeNdjson(ResultSet rs, Writer writer, boolean customColumns) throws SQLException, IOException {
+        CustomColumnRowMapper customColumnRowMapper = new CustomColumnRowMapper();
+        int rowNum = 0;
+        while (rs.next()) {
+            if (customColumns) {
+                writer.write(Json.MAPPER.writeValueAsString(customColumnRowMapper.mapRow(rs, rowNum)));
+            } else
+                writer.write(Json.MAPPER.writeValueAsString(dataRowMapper.mapRow(rs, rowNum)));
+            writer.write('\n');
+            rowNum++;
         }
+    }
 
-        return result;
+    private void writeCsv(ResultSet rs, Writer writer) throws SQLException, IOException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+
+        List<String> header = new ArrayList<>();
+        for (int i = 1; i <= columnCount; i++)
+            header.add(toCsvValue(metaData.getColumnLabel(i)));
+        writer.write(String.join(",", header));
+        writer.write("\r\n");
+
+        while (rs.next()) {
+            List<String> values = new ArrayList<>();
+            for (int i = 1; i <= columnCount; i++) {
+                Object value = rs.getObject(i);
+                if (value instanceof PGobject)
+                    value = ((PGobject) value).getValue();
+                values.add(toCsvValue(value));
+            }
+            writer.write(String.join(",", values));
+            writer.write("\r\n");
+        }
+    }
+
+    private String toCsvValue(Object value) {
+        if (value == null)
+            return "";
+
+        String text = value.toString();
+        if (text.contains(",") || text.contains("\"") || text.contains("\n") || text.contains("\r"))
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        else
+            return text;
     }
 
     public String getQuery(QueryRule queryRule) throws UnknownColumnException, ConditionNotAllowedException {
@@ -158,11 +451,11 @@ public class DataService {
         Query selectQuery = new Query("bucket")
                 .select(COL.COUNT)
                 .from()
-                .where(queryRule, paramMap);
+                .where(queryRule, paramMap, templateCache);
         return selectQuery.toString(logger, paramMap);
     }
 
-    public int modifyData(User user, Bucket bucket, Optional<List<Long>> dataIdArray, DataModifyDto dataModifyDto, QueryRule queryRule) throws IOException, UnexpectedException, ItemNotFoundException, UnknownColumnException, SQLException, ConditionNotAllowedException {
+    public int modifyData(PrincipalSnapshot user, BucketDescriptor bucket, Optional<List<Long>> dataIdArray, DataModifyDto dataModifyDto, QueryRule queryRule) throws IOException, UnexpectedException, ItemNotFoundException, UnknownColumnException, SQLException, ConditionNotAllowedException {
 
         if (dataIdArray.isPresent()) {
             queryRule.getConditions().add(new Condition(COL.DATA_ID, Operator.in, dataIdArray.get()));
@@ -175,102 +468,416 @@ public class DataService {
         if (bucket.isProtectedData() && !user.isAdminUser())
             queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
-        Map<String, Object> paramMap = new HashMap<>();
-
-        if (dataModifyDto.getTagId() != null)
-            paramMap.put(COL.TAG_ID, dataModifyDto.getTagId());
+        Map<String, Object> values = getModifyValues(user, dataModifyDto);
+        Map<String, Object> paramMap = new HashMap<>(values);
 
-        paramMap.put(COL.MODIFIED_BY, user.getUsername());
-        paramMap.put(COL.MODIFIED_AT, new java.sql.Timestamp(new java.util.Date().getTime()));
+        Query query = newQuery(bucket.getTableName())
+                .update()
+                .set(values)
+                .removeAndSetProperties(!values.containsKey(COL.PROPERTIES), dataModifyDto)
+                .where(queryRule, paramMap, templateCache);
+
+        long start = System.nanoTime();
+        int count = this.jdbcTemplate.update(toSql(query, paramMap), paramMap);
+        recordPredicates(bucket, query, start, count);
+        countCache.invalidate(bucket.getTableName());
+        return count;
+    }
 
-        if (dataModifyDto.getReserved() != null) {
-            paramMap.put(COL.RESERVED, dataModifyDto.getReserved());
-            if (dataModifyDto.getReserved())
-                paramMap.put(COL.RESERVED_BY, user.getUsername());
-            else
-                paramMap.put(COL.RESERVED_BY, null);
+    // Modifies the data matching the rules in chunks ordered by data_id, starting after the given data_id. Every chunk
+    // is modified by one statement. The listener is told about every modified chunk and stops the change by returning false.
+    public long modifyData(PrincipalSnapshot user, BucketDescriptor bucket, DataModifyDto dataModifyDto, QueryRule queryRule, long afterDataId, DataChunkListener listener) throws IOException, SQLException, UnknownColumnException, ConditionNotAllowedException {
+        if (dataModifyDto.getConditions() != null) {
+            for (Map<String, Object> bodyCondition : dataModifyDto.getConditions())
+                queryRule.getConditions().add(new Condition(bodyCondition));
         }
 
-        boolean properties = false;
-        if (dataModifyDto.getProperties() != null) {
-            paramMap.put(COL.PROPERTIES, serviceUtils.javaObjectToPGObject(dataModifyDto.getProperties()));
-            properties = true;
-        }
+        if (bucket.isProtectedData() && !user.isAdminUser())
+            queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
+
+        Map<String, Object> values = getModifyValues(user, dataModifyDto);
+        Map<String, Object> paramMap = new HashMap<>(values);
+
+        Query selectQuery = newQuery(bucket.getTableName())
+                .select(COL.DATA_ID)
+                .from()
+                .where(queryRule, paramMap, templateCache)
+                .afterDataId(paramMap, afterDataId)
+                .orderBy(COL.DATA_ID, true)
+                .limit(paramMap, chunkSize)
+                .forUpdate();
 
-        Query query = new Query(bucket.getTableName())
+        Query query = newQuery(bucket.getTableName())
                 .update()
-                .set(paramMap)
-                .removeAndSetProperties(!properties, dataModifyDto)
-                .where(queryRule, paramMap);
+                .set(values)
+                .removeAndSetProperties(!values.containsKey(COL.PROPERTIES), dataModifyDto)
+                .whereDataIdIn(selectQuery)
+                .returning(COL.DATA_ID);
+
+        String sql = query.toString(logger, paramMap);
+
+        long count = 0;
+        try {
+            while (true) {
+                paramMap.put("after_data_id", afterDataId);
+                statementStatistics.record(sql);
+
+                long start = System.nanoTime();
+                List<Long> dataIds = jdbcTemplate.queryForList(sql, paramMap, Long.class);
+                recordPredicates(bucket, selectQuery, start, dataIds.size());
+
+                if (dataIds.isEmpty())
+                    break;
 
-        return this.jdbcTemplate.update(query.toString(logger, paramMap), paramMap);
+                count += dataIds.size();
+                afterDataId = Collections.max(dataIds);
+
+                if (listener != null && !listener.onChunk(afterDataId, dataIds.size()))
+                    break;
+
+                if (dataIds.size() < chunkSize)
+                    break;
+            }
+        } finally {
+            countCache.invalidate(bucket.getTableName());
+        }
+        return count;
     }
 
-    public List<Long> reserveData(User user, Bucket bucket, QueryRule queryRule, Optional<Integer> limit, Optional<String> sort, String targetOwnerUsername) throws UnknownColumnException, ConditionNotAllowedException, UnexpectedException {
+    /**
+     * Applies its own change to each of the given rows in one transaction. The property paths and values are bound
+     * as parameters, so the items changing the same fields and paths share one statement and are sent as one JDBC
+     * batch. Returns the number of modified rows.
+     */
+    public int modifyData(PrincipalSnapshot user, BucketDescriptor bucket, List<DataModifyItemDto> items) throws IOException, SQLException, UnknownColumnException, ConditionNotAllowedException {
+        return modifyItems(user, bucket, items, List::size);
+    }
+
+    /**
+     * Like {@link #modifyData(PrincipalSnapshot, BucketDescriptor, List)}, returns the modified rows. They are read
+     * in the transaction of the modification, so they are the rows as modified, the rows not modified are left out.
+     */
+    public List<DataDto> modifyDataReturning(PrincipalSnapshot user, BucketDescriptor bucket, List<DataModifyItemDto> items) throws IOException, SQLException, UnknownColumnException, ConditionNotAllowedException {
+        String sql = "SELECT * FROM \"" + bucket.getTableName() + "\" WHERE " + COL.DATA_ID + " IN (:data_ids) ORDER BY " + COL.DATA_ID;
+        return modifyItems(user, bucket, items, ids -> {
+            if (ids.isEmpty())
+                return new ArrayList<>();
+            statementStatistics.record(sql);
+            return jdbcTemplate.query(sql, Collections.singletonMap("data_ids", ids), dataRowMapper);
+        });
+    }
+
+    // Executes the batches of the items in one transaction, the result is made of the ids of the modified rows
+    // inside the same transaction
+    private <T> T modifyItems(PrincipalSnapshot user, BucketDescriptor bucket, List<DataModifyItemDto> items, Function<List<Long>, T> result) throws IOException, SQLException, UnknownColumnException, ConditionNotAllowedException {
+        checkItems(items);
+        Map<String, List<Map<String, Object>>> batches = new LinkedHashMap<>();
+        Map<String, List<Long>> batchIds = new HashMap<>();
+
+        for (DataModifyItemDto item : items) {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(new Condition(COL.DATA_ID, Operator.equal, item.getId()));
+            if (bucket.isProtectedData() && !user.isAdminUser())
+                conditions.add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
+
+            Map<String, Object> values = getModifyValues(user, item);
+            Map<String, Object> paramMap = new HashMap<>(values);
+
+            Query query = new Query(bucket.getTableName())
+                    .bindPropertyPaths(true)
+                    .update()
+                    .set(values)
+                    .removeAndSetProperties(!values.containsKey(COL.PROPERTIES), item)
+                    .where(conditions, paramMap);
+
+            String sql = query.toString(logger, paramMap);
+            batches.computeIfAbsent(sql, key -> new ArrayList<>()).add(paramMap);
+            batchIds.computeIfAbsent(sql, key -> new ArrayList<>()).add(item.getId());
+        }
 
         TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
-        transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE);
+        T modified = transactionTemplate.execute(status -> {
+            List<Long> ids = new ArrayList<>();
+            for (Map.Entry<String, List<Map<String, Object>>> batch : batches.entrySet()) {
+                statementStatistics.record(batch.getKey());
+                @SuppressWarnings("unchecked")
+                Map<String, ?>[] batchValues = batch.getValue().toArray(new Map[0]);
+                int[] rows = jdbcTemplate.batchUpdate(batch.getKey(), batchValues);
+                List<Long> itemIds = batchIds.get(batch.getKey());
+                for (int i = 0; i < rows.length; i++)
+                    if (rows[i] > 0)
+                        ids.add(itemIds.get(i));
+            }
+            return result.apply(ids);
+        });
+
+        countCache.invalidate(bucket.getTableName());
+        return modified;
+    }
+
+    // Each item must have the id and each row can be modified once, the batches do not keep the order of the items
+    static void checkItems(List<DataModifyItemDto> items) {
+        Set<Long> ids = new HashSet<>();
+        for (DataModifyItemDto item : items) {
+            if (item.getId() == null)
+                throw new IllegalArgumentException("Each modified item must have the id!");
+            if (!ids.add(item.getId()))
+                throw new IllegalArgumentException("The data row " + item.getId() + " is modified more than once!");
+        }
+    }
+
+    // Values of the columns set by a modification, sorted so the same fields always give the same SQL
+    private Map<String, Object> getModifyValues(PrincipalSnapshot user, DataModifyDto dataModifyDto) throws JsonProcessingException, SQLException {
+        Map<String, Object> values = new TreeMap<>();
+
+        if (dataModifyDto.getTagId() != null)
+            values.put(COL.TAG_ID, dataModifyDto.getTagId());
+
+        values.put(COL.MODIFIED_BY, user.getUsername());
+        values.put(COL.MODIFIED_AT, new java.sql.Timestamp(new java.util.Date().getTime()));
+
+        if (dataModifyDto.getReserved() != null) {
+            values.put(COL.RESERVED, dataModifyDto.getReserved());
+            if (dataModifyDto.getReserved())
+                values.put(COL.RESERVED_BY, user.getUsername());
+            else
+                values.put(COL.RESERVED_BY, null);
+            // a reservation changed by hand has no lease
+            values.put(COL.RESERVED_UNTIL, null);
+        }
+
+        if (dataModifyDto.getProperties() != null)
+            values.put(COL.PROPERTIES, serviceUtils.javaObjectToPGObject(dataModifyDto.getProperties()));
+
+        return values;
+    }
 
+    // Returns the reserved rows as DataDto, or as maps of the given columns
+    public List<?> reserveData(PrincipalSnapshot user, BucketDescriptor bucket, Optional<List<CustomColumnDto>> inColumns, QueryRule queryRule, Optional<Integer> limit, Optional<String> sort, String targetOwnerUsername, Optional<Integer> leaseSeconds) throws UnknownColumnException, ConditionNotAllowedException {
         Map<String, Object> paramMap = new HashMap<>();
         queryRule.getConditions().add(new Condition(COL.RESERVED, Operator.equal, false));
 
-        Query selectQuery = new Query(bucket.getTableName())
+        // rows locked by a concurrent reservation are skipped, so reservations neither wait for each other nor retry
+        Query selectQuery = newQuery(bucket.getTableName())
                 .select(COL.DATA_ID)
                 .from()
-                .where(queryRule, paramMap)
+                .where(queryRule, paramMap, templateCache)
                 .orderBy(sort)
-                .limitPage(paramMap, limit, Optional.empty());
+                .limitPage(paramMap, limit, Optional.empty())
+                .forUpdateSkipLocked();
+
+        Map<String, Object> setValues = new LinkedHashMap<>();
+        setValues.put(COL.RESERVED, true);
+        setValues.put(COL.RESERVED_BY, targetOwnerUsername);
+        setValues.put(COL.MODIFIED_BY, user.getUsername());
+        if (!leaseSeconds.isPresent())
+            setValues.put(COL.RESERVED_UNTIL, null);
+
+        Query updateQuery = newQuery(bucket.getTableName())
+                .propertyTypes(bucket.getPropertyTypes())
+                .update()
+                .set(setValues);
+        if (leaseSeconds.isPresent())
+            updateQuery.setLease(paramMap, leaseSeconds.get());
+        updateQuery.whereDataIdIn(selectQuery)
+                .returningData(inColumns.orElse(null));
+        paramMap.putAll(setValues);
+
+        List<?> data;
+        long start = System.nanoTime();
+        if (inColumns.isPresent()) {
+            data = jdbcTemplate.query(toSql(updateQuery, paramMap), paramMap, new CustomColumnRowMapper());
+        } else
+            data = jdbcTemplate.query(toSql(updateQuery, paramMap), paramMap, dataRowMapper);
+        recordPredicates(bucket, updateQuery, start, data.size());
+
+        if (!data.isEmpty()) {
+            countCache.invalidate(bucket.getTableName());
+            if (leaseSeconds.isPresent())
+                leaseTables.add(bucket.getTableName());
+        }
+        return data;
+    }
 
-        boolean done = false;
-        int tryCount = 7;
-        List<Long> dataIds = null;
+    // Heartbeat of the reservations: moves the end of the lease of the given rows reserved by the user
+    public int extendLease(PrincipalSnapshot user, BucketDescriptor bucket, List<Long> dataIds, int leaseSeconds) throws UnknownColumnException, ConditionNotAllowedException {
+        Map<String, Object> paramMap = new HashMap<>();
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(new Condition(COL.DATA_ID, Operator.in, dataIds));
+        conditions.add(new Condition(COL.RESERVED, Operator.equal, true));
+
+        if (!user.isAdminUser())
+            conditions.add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
+
+        Query query = newQuery(bucket.getTableName())
+                .update()
+                .setLease(paramMap, leaseSeconds)
+                .where(conditions, paramMap);
+
+        int count = jdbcTemplate.update(toSql(query, paramMap), paramMap);
+        if (count > 0)
+            leaseTables.add(bucket.getTableName());
+        return count;
+    }
+
+    // Releases the reservations with an expired lease in the tables which can have leases. Each statement takes a
+    // small batch of rows found by the lease index, rows locked by running requests are left for the next round.
+    @Scheduled(fixedDelayString = "${databucket.lease.sweep-interval:60000}")
+    public void releaseExpiredLeases() {
+        for (String tableName : new ArrayList<>(leaseTables)) {
+            String sql = "UPDATE \"" + tableName + "\" SET " + COL.RESERVED + " = false, " + COL.RESERVED_BY + " = null, " + COL.RESERVED_UNTIL + " = null"
+                    + " WHERE " + COL.DATA_ID + " IN (SELECT " + COL.DATA_ID + " FROM \"" + tableName + "\""
+                    + " WHERE " + COL.RESERVED_UNTIL + " < localtimestamp LIMIT :limit FOR UPDATE SKIP LOCKED)";
+            Map<String, Object> paramMap = Collections.singletonMap("limit", leaseSweepBatchSize);
 
-        while (!done && tryCount > 0) {
             try {
-                dataIds = transactionTemplate.execute(paramTransactionStatus -> {
-                    System.out.println("execute transaction");
-                    List<Long> listOfIds = jdbcTemplate.queryForList(selectQuery.toString(logger, paramMap), paramMap, Long.class);
-                    if (listOfIds.size() > 0) {
-                        Condition condition = new Condition(COL.DATA_ID, Operator.in, listOfIds);
-
-                        Map<String, Object> updateNamedParams = new HashMap<>();
-                        updateNamedParams.put(COL.RESERVED_BY, targetOwnerUsername);
-                        updateNamedParams.put(COL.MODIFIED_BY, user.getUsername());
-                        updateNamedParams.put(COL.RESERVED, true);
-
-                        Query updateQuery = null;
-                        try {
-                            updateQuery = new Query(bucket.getTableName())
-                                    .update()
-                                    .set(updateNamedParams)
-                                    .where(condition, updateNamedParams);
-                        } catch (UnknownColumnException | ConditionNotAllowedException e) {
-                            e.printStackTrace();
-                        }
-
-                        jdbcTemplate.update(updateQuery.toString(logger, updateNamedParams), updateNamedParams);
-                        return listOfIds;
-                    } else
-                        return null;
-                });
+                int released;
+                do {
+                    released = jdbcTemplate.update(sql, paramMap);
+                    if (released > 0) {
+                        logger.debug("Released " + released + " expired reservation(s) in " + tableName);
+                        countCache.invalidate(tableName);
+                    }
+                } while (released == leaseSweepBatchSize);
+
+                // removed before the check, so a lease granted in the meantime adds the table again
+                leaseTables.remove(tableName);
+                if (hasLeases(tableName))
+                    leaseTables.add(tableName);
+            } catch (DataAccessException e) {
+                // the bucket can be removed in the meantime
+                leaseTables.remove(tableName);
+                logger.warn("Failed to release expired reservations in " + tableName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Finds the tables with leases granted before the start of this instance or by other instances
+    @Scheduled(fixedDelayString = "${databucket.lease.rescan-interval:600000}")
+    public void findLeaseTables() {
+        List<Long> bucketIds = jdbcTemplate.getJdbcTemplate().queryForList("SELECT bucket_id FROM buckets WHERE deleted = false", Long.class);
+        for (Long bucketId : bucketIds) {
+            String tableName = String.format("x-bucket-%d", bucketId);
+            try {
+                if (hasLeases(tableName))
+                    leaseTables.add(tableName);
+            } catch (DataAccessException e) {
+                // the bucket can be removed or not upgraded yet
+                logger.debug("Failed to find the leases in " + tableName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Looked up in the partial lease index
+    private boolean hasLeases(String tableName) {
+        Boolean leases = jdbcTemplate.getJdbcTemplate().queryForObject("SELECT EXISTS (SELECT 1 FROM \"" + tableName + "\" WHERE " + COL.RESERVED_UNTIL + " IS NOT NULL)", Boolean.class);
+        return leases != null && leases;
+    }
+
+    public static String getLeaseIndexSql(String tableName, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY " : "") + "IF NOT EXISTS \"" + tableName + "-lease\" ON \"" + tableName + "\" (" + COL.RESERVED_UNTIL + ") WHERE " + COL.RESERVED_UNTIL + " IS NOT NULL";
+    }
+
+    // Adds to the tables of buckets created by the previous versions the columns and history triggers used by this
+    // version, the indexes are built later by buildMissingIndexes. The catalog is read first, so only the missing
+    // columns are added and a started instance does not lock the tables.
+    public void upgradeBucketTables() {
+        JdbcTemplate template = jdbcTemplate.getJdbcTemplate();
+        String columnsSql = "SELECT table_name::text FROM information_schema.columns WHERE table_schema = current_schema() AND column_name = ?";
+        Set<String> leaseColumns = new HashSet<>(template.queryForList(columnsSql, String.class, COL.RESERVED_UNTIL));
+        Set<String> diffColumns = new HashSet<>(template.queryForList(columnsSql, String.class, COL.PROPERTIES_DIFF));
+        Set<String> versionColumns = new HashSet<>(template.queryForList(columnsSql, String.class, COL.PROPERTIES_VERSION));
+
+        List<Long> bucketIds = template.queryForList("SELECT bucket_id FROM buckets WHERE deleted = false", Long.class);
+        for (Long bucketId : bucketIds) {
+            String tableName = String.format("x-bucket-%d", bucketId);
+            String historyTableName = tableName + "-h";
+
+            if (!leaseColumns.contains(tableName))
+                executeUpgrade("ALTER TABLE \"" + tableName + "\" ADD COLUMN IF NOT EXISTS " + COL.RESERVED_UNTIL + " timestamp without time zone DEFAULT NULL");
+            if (!diffColumns.contains(historyTableName) || !versionColumns.contains(historyTableName))
+                executeUpgrade("ALTER TABLE \"" + historyTableName + "\" ADD COLUMN IF NOT EXISTS " + COL.PROPERTIES_DIFF + " jsonb DEFAULT NULL,"
+                        + " ADD COLUMN IF NOT EXISTS " + COL.PROPERTIES_VERSION + " integer DEFAULT NULL");
+        }
+
+        // Buckets created before the history was captured by statement level triggers storing diffs of the properties
+        String sql = "SELECT DISTINCT c.relname FROM pg_trigger t JOIN pg_class c ON c.oid = t.tgrelid"
+                + " WHERE (t.tgname IN ('trigger_after_insert', 'trigger_after_update') AND (t.tgtype & 1) = 1)"
+                + " OR (t.tgname = 'trigger_after_update' AND t.tgnargs = 0)";
+        List<String> rowTriggerTables = jdbcTemplate.getJdbcTemplate().queryForList(sql, String.class);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        for (String tableName : rowTriggerTables) {
+            logger.info("Upgrading the history triggers of the table '" + tableName + "'");
+            // the old triggers are dropped and the new ones created together, so no change escapes the history
+            transactionTemplate.execute(status -> {
+                for (String upgradeSql : BucketService.getHistoryTriggersUpgradeSql(tableName, historySnapshotInterval))
+                    jdbcTemplate.getJdbcTemplate().execute(upgradeSql);
+                return null;
+            });
+        }
+    }
+
+    // Builds the lease and history indexes missing in the bucket tables created by older versions. The indexes are
+    // built without blocking the writes, which can take long on big tables, so it runs in the background after the
+    // start; a bucket whose indexes fail is left for the next start.
+    public void buildMissingIndexes() {
+        JdbcTemplate template = jdbcTemplate.getJdbcTemplate();
+        Set<String> indexes = new HashSet<>(template.queryForList("SELECT c.relname::text FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid"
+                + " WHERE i.indisvalid AND c.relname LIKE 'x-bucket-%'", String.class));
+        Set<String> partitionedTables = new HashSet<>(template.queryForList("SELECT relname::text FROM pg_class WHERE relkind = 'p'", String.class));
 
-                done = true;
-            } catch (DeadlockLoserDataAccessException d) {
-                tryCount -= 1;
-                try {
-                    Thread.sleep(400);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        List<Long> bucketIds = template.queryForList("SELECT bucket_id FROM buckets WHERE deleted = false", Long.class);
+        for (Long bucketId : bucketIds) {
+            String tableName = String.format("x-bucket-%d", bucketId);
+            String historyTableName = tableName + "-h";
+
+            try {
+                // outside of a transaction; an index left invalid by an interrupted build is dropped first, IF NOT
+                // EXISTS would keep it
+                if (!indexes.contains(tableName + "-lease")) {
+                    executeUpgrade("DROP INDEX CONCURRENTLY IF EXISTS \"" + tableName + "-lease\"");
+                    executeUpgrade(getLeaseIndexSql(tableName, true));
+                }
+                if (!indexes.contains(historyTableName + "-data")) {
+                    if (partitionedTables.contains(historyTableName))
+                        buildPartitionedHistoryIndex(historyTableName, indexes);
+                    else {
+                        executeUpgrade("DROP INDEX CONCURRENTLY IF EXISTS \"" + historyTableName + "-data\"");
+                        executeUpgrade(HistoryPartitionService.getHistoryIndexSql(historyTableName, true));
+                    }
                 }
-            } catch (Exception e) {
-                throw new UnexpectedException(e);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to build the indexes of " + tableName + ": " + e.getMessage());
             }
         }
+    }
+
+    // The index of a partitioned table can not be built concurrently. It is created on the parent table only (invalid
+    // until every partition has its index), the index of each partition is built concurrently and attached to it.
+    // An invalid parent index is kept, the partitions already attached to it are skipped.
+    private void buildPartitionedHistoryIndex(String historyTableName, Set<String> indexes) {
+        String parentIndex = historyTableName + "-data";
+        executeUpgrade(HistoryPartitionService.getHistoryParentIndexSql(historyTableName));
+
+        List<String> partitions = jdbcTemplate.getJdbcTemplate().queryForList("SELECT t.relname::text FROM pg_inherits ti"
+                + " JOIN pg_class t ON t.oid = ti.inhrelid JOIN pg_class p ON p.oid = ti.inhparent"
+                + " WHERE p.relname = ? AND NOT EXISTS (SELECT 1 FROM pg_inherits ii"
+                + " JOIN pg_index x ON x.indexrelid = ii.inhrelid JOIN pg_class pi ON pi.oid = ii.inhparent"
+                + " WHERE pi.relname = ? AND x.indrelid = t.oid)", String.class, historyTableName, parentIndex);
+        for (String partition : partitions) {
+            if (!indexes.contains(partition + "-data"))
+                executeUpgrade("DROP INDEX CONCURRENTLY IF EXISTS \"" + partition + "-data\"");
+            executeUpgrade(HistoryPartitionService.getHistoryIndexSql(partition, true));
+            executeUpgrade("ALTER INDEX \"" + parentIndex + "\" ATTACH PARTITION \"" + partition + "-data\"");
+        }
+    }
 
-        return dataIds;
+    private void executeUpgrade(String sql) {
+        logger.info(sql);
+        jdbcTemplate.getJdbcTemplate().execute(sql);
     }
 
-    public int deleteDataByIds(User user, Bucket bucket, List<Long> dataIds) throws UnknownColumnException, ConditionNotAllowedException {
+    public int deleteDataByIds(PrincipalSnapshot user, BucketDescriptor bucket, List<Long> dataIds) throws UnknownColumnException, ConditionNotAllowedException {
         Map<String, Object> paramMap = new HashMap<>();
         List<Condition> conditions = new ArrayList<>();
         conditions.add(new Condition(COL.DATA_ID, Operator.in, dataIds));
@@ -278,41 +885,136 @@ public class DataService {
         if (bucket.isProtectedData() && !user.isAdminUser())
             conditions.add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
-        Query query = new Query(bucket.getTableName())
+        Query query = newQuery(bucket.getTableName())
                 .delete()
                 .from()
                 .where(conditions, paramMap);
 
-        return jdbcTemplate.update(query.toString(logger, paramMap), paramMap);
+        int count = jdbcTemplate.update(toSql(query, paramMap), paramMap);
+        countCache.invalidate(bucket.getTableName());
+        return count;
     }
 
-    public int deleteDataByRules(User user, Bucket bucket, QueryRule queryRule) throws UnknownColumnException, ConditionNotAllowedException {
+    // Deletes the data matching the rules in one transaction, all or nothing, when at most syncDeleteLimit rows match.
+    // The matching rows are locked and counted first, bounded by the limit; when there are more of them nothing is
+    // deleted and the result is empty, such a delete runs as a job. The history of the deleted rows is removed by
+    // one statement, the before_delete trigger skips it.
+    public Optional<Integer> deleteDataByRules(PrincipalSnapshot user, BucketDescriptor bucket, QueryRule queryRule) throws UnknownColumnException, ConditionNotAllowedException {
         Map<String, Object> paramMap = new HashMap<>();
 
         if (bucket.isProtectedData() && !user.isAdminUser())
             queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
 
-        Query query = new Query(bucket.getTableName())
-                .delete()
+        Query query = newQuery(bucket.getTableName())
+                .select(COL.DATA_ID)
                 .from()
-                .where(queryRule, paramMap);
+                .where(queryRule, paramMap, templateCache)
+                .limit(paramMap, syncDeleteLimit + 1)
+                .forUpdate();
+
+        String selectSql = toSql(query, paramMap);
+        String deleteHistorySql = "DELETE FROM \"" + bucket.getTableHistoryName() + "\" WHERE " + COL.DATA_ID + " IN (:data_ids)";
+        String deleteSql = "DELETE FROM \"" + bucket.getTableName() + "\" WHERE " + COL.DATA_ID + " IN (:data_ids)";
+
+        long start = System.nanoTime();
+        List<Long> dataIds = new TransactionTemplate(transactionManager).execute(status -> {
+            jdbcTemplate.getJdbcTemplate().queryForObject("SELECT set_config('databucket.history_deleted', 'on', true)", String.class);
+            List<Long> ids = jdbcTemplate.queryForList(selectSql, paramMap, Long.class);
+            if (ids.isEmpty() || ids.size() > syncDeleteLimit)
+                return ids;
+
+            Map<String, Object> idsParam = Collections.singletonMap("data_ids", ids);
+            statementStatistics.record(deleteHistorySql);
+            jdbcTemplate.update(deleteHistorySql, idsParam);
+            statementStatistics.record(deleteSql);
+            jdbcTemplate.update(deleteSql, idsParam);
+            return ids;
+        });
+        recordPredicates(bucket, query, start, dataIds.size());
+
+        if (dataIds.size() > syncDeleteLimit)
+            return Optional.empty();
+
+        if (!dataIds.isEmpty())
+            countCache.invalidate(bucket.getTableName());
+        return Optional.of(dataIds.size());
+    }
+
+    // Deletes the data matching the rules in chunks ordered by data_id, starting after the given data_id, for the jobs.
+    // Every chunk is deleted in its own transaction and its history is removed by one statement, the before_delete
+    // trigger skips it. The listener is told about every deleted chunk and stops the delete by returning false.
+    public long deleteDataByRules(PrincipalSnapshot user, BucketDescriptor bucket, QueryRule queryRule, long afterDataId, DataChunkListener listener) throws UnknownColumnException, ConditionNotAllowedException {
+        Map<String, Object> paramMap = new HashMap<>();
 
-        return jdbcTemplate.update(query.toString(logger, paramMap), paramMap);
+        if (bucket.isProtectedData() && !user.isAdminUser())
+            queryRule.getConditions().add(new Condition(COL.RESERVED_BY, Operator.equal, user.getUsername()));
+
+        Query query = newQuery(bucket.getTableName())
+                .select(COL.DATA_ID)
+                .from()
+                .where(queryRule, paramMap, templateCache)
+                .afterDataId(paramMap, afterDataId)
+                .orderBy(COL.DATA_ID, true)
+                .limit(paramMap, chunkSize)
+                .forUpdate();
+
+        String selectSql = query.toString(logger, paramMap);
+        String deleteHistorySql = "DELETE FROM \"" + bucket.getTableHistoryName() + "\" WHERE " + COL.DATA_ID + " IN (:data_ids)";
+        String deleteSql = "DELETE FROM \"" + bucket.getTableName() + "\" WHERE " + COL.DATA_ID + " IN (:data_ids)";
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        long count = 0;
+        try {
+            while (true) {
+                paramMap.put("after_data_id", afterDataId);
+                statementStatistics.record(selectSql);
+
+                long start = System.nanoTime();
+                List<Long> dataIds = transactionTemplate.execute(status -> {
+                    jdbcTemplate.getJdbcTemplate().queryForObject("SELECT set_config('databucket.history_deleted', 'on', true)", String.class);
+                    List<Long> ids = jdbcTemplate.queryForList(selectSql, paramMap, Long.class);
+                    if (!ids.isEmpty()) {
+                        Map<String, Object> idsParam = Collections.singletonMap("data_ids", ids);
+                        statementStatistics.record(deleteHistorySql);
+                        jdbcTemplate.update(deleteHistorySql, idsParam);
+                        statementStatistics.record(deleteSql);
+                        jdbcTemplate.update(deleteSql, idsParam);
+                    }
+                    return ids;
+                });
+                recordPredicates(bucket, query, start, dataIds.size());
+
+                if (dataIds.isEmpty())
+                    break;
+
+                count += dataIds.size();
+                afterDataId = dataIds.get(dataIds.size() - 1);
+
+                if (listener != null && !listener.onChunk(afterDataId, dataIds.size()))
+                    break;
+
+                if (dataIds.size() < chunkSize)
+                    break;
+            }
+        } finally {
+            countCache.invalidate(bucket.getTableName());
+        }
+        return count;
     }
 
-    public List<Map<String, Object>> getDataHistory(Bucket bucket, Long dataId) throws UnknownColumnException, ConditionNotAllowedException {
+    public List<Map<String, Object>> getDataHistory(BucketDescriptor bucket, Long dataId) throws UnknownColumnException, ConditionNotAllowedException {
         Map<String, Object> paramMap = new HashMap<>();
 
-        String[] columns = {COL.ID, COL.TAG_ID, COL.RESERVED, COL.PROPERTIES + " is not null as \"" + COL.PROPERTIES + "\"", COL.MODIFIED_AT, COL.MODIFIED_BY};
+        String[] columns = {COL.ID, COL.TAG_ID, COL.RESERVED, "(" + COL.PROPERTIES + " is not null or " + COL.PROPERTIES_DIFF + " is not null) as \"" + COL.PROPERTIES + "\"", COL.MODIFIED_AT, COL.MODIFIED_BY};
         Condition condition = new Condition(COL.DATA_ID, Operator.equal, dataId);
 
-        Query query = new Query(bucket.getTableHistoryName())
+        Query query = newQuery(bucket.getTableHistoryName())
                 .select(columns)
                 .from()
                 .where(condition, paramMap)
                 .orderBy(COL.MODIFIED_AT, true);
 
-        List<Map<String, Object>> result = jdbcTemplate.queryForList(query.toString(logger, paramMap), paramMap);
+        List<Map<String, Object>> result = jdbcTemplate.queryForList(toSql(query, paramMap), paramMap);
 
         // clean null properties
         for (Map<String, Object> map : result) {
@@ -338,23 +1040,61 @@ public class DataService {
         return result;
     }
 
-    public List<Map<String, Object>> getDataHistoryProperties(Bucket bucket, Long dataId, List<Long> ids) throws ItemNotFoundException, UnexpectedException, UnknownColumnException, ConditionNotAllowedException {
-        List<Condition> conditions = new ArrayList<>();
-        Map<String, Object> namedParameters = new HashMap<>();
-
-        String[] columns = {COL.ID, COL.PROPERTIES + "::varchar"};
-
-        conditions.add(new Condition(COL.DATA_ID, Operator.equal, dataId));
-        conditions.add(new Condition(COL.ID, Operator.in, ids));
+    /**
+     * Properties of the given history versions. The versions are stored as diffs against the previous version with
+     * a whole document every few versions, so the versions are rebuilt from the nearest whole document before the
+     * first requested one. A version whose chain of diffs is not complete (e.g. dropped by the history retention)
+     * has null properties.
+     */
+    public List<Map<String, Object>> getDataHistoryProperties(BucketDescriptor bucket, Long dataId, List<Long> ids) throws UnexpectedException {
+        if (ids == null || ids.isEmpty())
+            return new ArrayList<>();
+
+        Set<Long> requestedIds = new HashSet<>(ids);
+        Map<String, Object> paramMap = new HashMap<>();
+        paramMap.put("dataId", dataId);
+        paramMap.put("minId", Collections.min(ids));
+        paramMap.put("maxId", Collections.max(ids));
+
+        String table = "\"" + bucket.getTableHistoryName() + "\"";
+        String sql = "SELECT " + COL.ID + ", " + COL.PROPERTIES + "::varchar AS " + COL.PROPERTIES + ", " + COL.PROPERTIES_DIFF + "::varchar AS " + COL.PROPERTIES_DIFF
+                + " FROM " + table
+                + " WHERE " + COL.DATA_ID + " = :dataId AND " + COL.ID + " <= :maxId"
+                + " AND " + COL.ID + " >= coalesce((SELECT max(" + COL.ID + ") FROM " + table
+                + " WHERE " + COL.DATA_ID + " = :dataId AND " + COL.ID + " <= :minId AND " + COL.PROPERTIES + " IS NOT NULL), :minId)"
+                + " ORDER BY " + COL.ID;
+
+        logger.debug(sql);
+        List<Map<String, Object>> result = new ArrayList<>();
+        try {
+            ObjectNode document = null;
+            for (Map<String, Object> row : jdbcTemplate.queryForList(sql, paramMap)) {
+                String properties = (String) row.get(COL.PROPERTIES);
+                String diff = (String) row.get(COL.PROPERTIES_DIFF);
+                if (properties != null)
+                    document = (ObjectNode) Json.MAPPER.readTree(properties);
+                else if (diff != null) {
+                    if (document != null)
+                        HistoryDiff.apply(document, Json.MAPPER.readTree(diff));
+                }
 
-        Query query = new Query(bucket.getTableHistoryName())
-                .select(columns)
-                .from()
-                .where(conditions, namedParameters)
-                .orderBy(COL.ID, true);
+                long id = ((Number) row.get(COL.ID)).longValue();
+                if (requestedIds.contains(id)) {
+                    Map<String, Object> version = new HashMap<>();
+                    version.put(COL.ID, id);
+                    version.put(COL.PROPERTIES, properties != null || diff != null ? toMap(document) : null);
+                    result.add(version);
+                }
+            }
+        } catch (IOException e) {
+            throw new UnexpectedException(e);
+        }
 
-        List<Map<String, Object>> result = jdbcTemplate.queryForList(query.toString(logger, namedParameters), namedParameters);
-        serviceUtils.convertStringToMap(result, COL.PROPERTIES);
         return result;
     }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toMap(ObjectNode document) {
+        return document != null ? Json.MAPPER.convertValue(document, Map.class) : null;
+    }
 }
@@ -0,0 +1,26 @@
+package pl.databucket.service.data;
+
+public enum ExportFormat {
+
+	ndjson("application/x-ndjson"),
+	csv("text/csv");
+
+	private final String contentType;
+
+	ExportFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public static ExportFormat fromString(String text) {
+		for (ExportFormat format : ExportFormat.values()) {
+			if (format.name().equalsIgnoreCase(text)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown export format '" + text + "'!");
+	}
+}
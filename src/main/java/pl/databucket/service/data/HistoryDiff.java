@@ -0,0 +1,51 @@
+package pl.databucket.service.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Applies the changes of the properties stored in the history by the jsonb_diff() function: an array of
+ * operations, {"p": path, "v": value} sets the value at the path, {"p": path} removes the path.
+ */
+public class HistoryDiff {
+
+    private static final String PATH = "p";
+    private static final String VALUE = "v";
+
+    private HistoryDiff() {
+    }
+
+    public static void apply(ObjectNode document, JsonNode diff) {
+        for (JsonNode operation : diff) {
+            JsonNode path = operation.get(PATH);
+            if (path == null || path.size() == 0)
+                continue;
+
+            ObjectNode parent = getParent(document, path, operation.has(VALUE));
+            if (parent == null)
+                continue;
+
+            String key = path.get(path.size() - 1).asText();
+            if (operation.has(VALUE))
+                parent.set(key, operation.get(VALUE));
+            else
+                parent.remove(key);
+        }
+    }
+
+    // Object containing the last element of the path, missing objects are created only when a value is set
+    private static ObjectNode getParent(ObjectNode document, JsonNode path, boolean create) {
+        ObjectNode parent = document;
+        for (int i = 0; i < path.size() - 1; i++) {
+            String key = path.get(i).asText();
+            JsonNode child = parent.get(key);
+            if (child == null || !child.isObject()) {
+                if (!create)
+                    return null;
+                child = parent.putObject(key);
+            }
+            parent = (ObjectNode) child;
+        }
+        return parent;
+    }
+}
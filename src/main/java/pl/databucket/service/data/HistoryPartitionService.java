@@ -0,0 +1,183 @@
+package pl.databucket.service.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Storage of the bucket history tables. In the partitioned mode the history table is partitioned by month on
+ * modified_at, partitions are created ahead of time and the retention of a bucket drops whole partitions.
+ * In both modes the history is indexed by (data_id, modified_at), the way it is read.
+ */
+@Component
+public class HistoryPartitionService {
+
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final Pattern PARTITION_NAME = Pattern.compile(".*-(\\d{6})$");
+
+    private final Logger logger = LoggerFactory.getLogger(HistoryPartitionService.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean partitioned;
+    private final int monthsAhead;
+
+    public HistoryPartitionService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                   @Value("${databucket.history.partitioned:true}") boolean partitioned,
+                                   @Value("${databucket.history.months-ahead:2}") int monthsAhead) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.partitioned = partitioned;
+        this.monthsAhead = monthsAhead;
+    }
+
+    public void createHistoryTable(String tableName, String historyTableName) {
+        String sql = "CREATE TABLE \"" + historyTableName + "\" ("
+                + "id bigserial NOT NULL,"
+                + "data_id bigint NOT NULL,"
+                + "tag_id smallint DEFAULT NULL,"
+                + "reserved boolean DEFAULT NULL,"
+                + "properties jsonb DEFAULT NULL,"
+                + "properties_diff jsonb DEFAULT NULL,"
+                + "properties_version integer DEFAULT NULL,"
+                + "modified_at timestamp without time zone NOT NULL DEFAULT current_timestamp,"
+                + "modified_by character varying(50),"
+                // the primary key of a partitioned table has to contain the partition key
+                + (partitioned ? "PRIMARY KEY (id, modified_at)," : "PRIMARY KEY (id),")
+                + "CONSTRAINT fk_tag_h_id FOREIGN KEY(data_id) REFERENCES \"" + tableName + "\"(data_id))"
+                + (partitioned ? " PARTITION BY RANGE (modified_at)" : "");
+
+        execute(sql);
+        execute(getHistoryIndexSql(historyTableName, false));
+
+        if (partitioned) {
+            // rows outside of the created partitions, e.g. when the maintenance did not run for a long time
+            execute("CREATE TABLE \"" + historyTableName + "-default\" PARTITION OF \"" + historyTableName + "\" DEFAULT");
+            createPartitions(historyTableName);
+        }
+    }
+
+    public static String getHistoryIndexSql(String historyTableName, boolean concurrently) {
+        return "CREATE INDEX " + (concurrently ? "CONCURRENTLY " : "") + "IF NOT EXISTS \"" + historyTableName + "-data\" ON \"" + historyTableName + "\" (" + COL.DATA_ID + ", " + COL.MODIFIED_AT + ")";
+    }
+
+    // The index of the partitioned table alone, the indexes of its partitions are attached to it
+    public static String getHistoryParentIndexSql(String historyTableName) {
+        return "CREATE INDEX IF NOT EXISTS \"" + historyTableName + "-data\" ON ONLY \"" + historyTableName + "\" (" + COL.DATA_ID + ", " + COL.MODIFIED_AT + ")";
+    }
+
+    public boolean isPartitioned(String historyTableName) {
+        List<String> kinds = jdbcTemplate.queryForList("SELECT relkind::text FROM pg_class WHERE relname = ?", String.class, historyTableName);
+        return kinds.size() == 1 && "p".equals(kinds.get(0));
+    }
+
+    // Creates the partitions of the current month and of the following months-ahead months
+    public void createPartitions(String historyTableName) {
+        String defaultPartition = historyTableName + "-default";
+        boolean hasDefault = exists(defaultPartition);
+
+        YearMonth month = YearMonth.now();
+        for (int i = 0; i <= monthsAhead; i++, month = month.plusMonths(1)) {
+            String partition = historyTableName + "-" + month.format(PARTITION_SUFFIX);
+            String bounds = " FOR VALUES FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')";
+            String inRange = COL.MODIFIED_AT + " >= '" + month.atDay(1) + "' AND " + COL.MODIFIED_AT + " < '" + month.plusMonths(1).atDay(1) + "'";
+
+            if (exists(partition))
+                continue;
+
+            if (hasDefault && hasRows(defaultPartition, inRange))
+                // a partition overlapping rows of the default partition can not be created, the rows of the month are
+                // moved to a new table attached as the partition in one transaction
+                transactionTemplate.execute(status -> {
+                    execute("CREATE TABLE \"" + partition + "\" (LIKE \"" + historyTableName + "\" INCLUDING DEFAULTS)");
+                    execute("WITH moved AS (DELETE FROM \"" + defaultPartition + "\" WHERE " + inRange + " RETURNING *)"
+                            + " INSERT INTO \"" + partition + "\" SELECT * FROM moved");
+                    execute("ALTER TABLE \"" + historyTableName + "\" ATTACH PARTITION \"" + partition + "\"" + bounds);
+                    return null;
+                });
+            else
+                execute("CREATE TABLE IF NOT EXISTS \"" + partition + "\" PARTITION OF \"" + historyTableName + "\"" + bounds);
+        }
+    }
+
+    // Drops the partitions whose whole range is older than the given number of months, returns the number of dropped partitions
+    public int dropExpiredPartitions(String historyTableName, int retentionMonths) {
+        LocalDate retainFrom = YearMonth.now().minusMonths(retentionMonths).atDay(1);
+
+        List<String> partitions = jdbcTemplate.queryForList("SELECT c.relname::text FROM pg_inherits i"
+                + " JOIN pg_class c ON c.oid = i.inhrelid"
+                + " JOIN pg_class p ON p.oid = i.inhparent"
+                + " WHERE p.relname = ?", String.class, historyTableName);
+
+        int dropped = 0;
+        for (String partition : partitions) {
+            Matcher matcher = PARTITION_NAME.matcher(partition);
+            if (!matcher.matches())
+                continue;
+
+            YearMonth month = YearMonth.parse(matcher.group(1), PARTITION_SUFFIX);
+            if (!month.plusMonths(1).atDay(1).isAfter(retainFrom)) {
+                execute("DROP TABLE \"" + partition + "\"");
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    // Keeps the partitions of all partitioned history tables ahead of time and applies the retention of the buckets
+    @Scheduled(cron = "${databucket.history.maintenance-cron:0 0 1 * * *}")
+    public void maintainPartitions() {
+        List<Map<String, Object>> buckets = jdbcTemplate.queryForList("SELECT bucket_id, history_retention FROM buckets WHERE deleted = false");
+        for (Map<String, Object> bucket : buckets) {
+            String historyTableName = String.format("x-bucket-%d-h", ((Number) bucket.get("bucket_id")).longValue());
+            // the bucket can be removed in the meantime
+            try {
+                if (!isPartitioned(historyTableName))
+                    continue;
+
+                createPartitions(historyTableName);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to create the history partitions of " + historyTableName + ": " + e.getMessage());
+            }
+
+            // the retention does not depend on the new partitions
+            Number retention = (Number) bucket.get("history_retention");
+            if (retention != null && retention.intValue() > 0) {
+                try {
+                    int dropped = dropExpiredPartitions(historyTableName, retention.intValue());
+                    if (dropped > 0)
+                        logger.info("Dropped " + dropped + " expired history partition(s) of " + historyTableName);
+                } catch (DataAccessException e) {
+                    logger.warn("Failed to drop the expired history partitions of " + historyTableName + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean exists(String tableName) {
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM pg_class WHERE relname = ?", Integer.class, tableName) > 0;
+    }
+
+    private boolean hasRows(String tableName, String condition) {
+        return jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM \"" + tableName + "\" WHERE " + condition + ")", Boolean.class);
+    }
+
+    private void execute(String sql) {
+        logger.debug(sql);
+        jdbcTemplate.execute(sql);
+    }
+}
@@ -0,0 +1,175 @@
+package pl.databucket.service.data;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import pl.databucket.dto.IndexRecommendationDto;
+import pl.databucket.dto.PropertyIndexDto;
+import pl.databucket.entity.Bucket;
+import pl.databucket.exception.ItemAlreadyExistsException;
+import pl.databucket.repository.BucketRepository;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the property conditions and sorts of the executed queries together with the execution time and the
+ * number of returned rows. The frequent and slow ones that are not indexed yet are recommended as property indexes.
+ * Optionally the recommended indexes are created in the maintenance window.
+ */
+@Component
+public class IndexAdvisor {
+
+    private static final String TABLE_PREFIX = "x-bucket-";
+
+    private final int maxSize;
+    private final long minExecutions;
+    private final double minAvgMillis;
+    private final long maintenanceWindowMillis;
+    private final PropertyIndexService propertyIndexService;
+    private final BucketRepository bucketRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final Map<Key, Usage> usages = new ConcurrentHashMap<>();
+    Logger logger = LoggerFactory.getLogger(IndexAdvisor.class);
+
+    public IndexAdvisor(@Value("${databucket.index-advisor.size:10000}") int maxSize,
+                        @Value("${databucket.index-advisor.min-executions:100}") long minExecutions,
+                        @Value("${databucket.index-advisor.min-avg-millis:50}") double minAvgMillis,
+                        @Value("${databucket.index-advisor.maintenance-window-minutes:60}") long maintenanceWindowMinutes,
+                        PropertyIndexService propertyIndexService, BucketRepository bucketRepository, PlatformTransactionManager transactionManager) {
+        this.maxSize = maxSize;
+        this.minExecutions = minExecutions;
+        this.minAvgMillis = minAvgMillis;
+        this.maintenanceWindowMillis = maintenanceWindowMinutes * 60 * 1000;
+        this.propertyIndexService = propertyIndexService;
+        this.bucketRepository = bucketRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    public void record(String tableName, List<QueryPredicate> predicates, long millis, int rows) {
+        // a property used twice in one query is counted once
+        for (QueryPredicate predicate : new HashSet<>(predicates)) {
+            Key key = new Key(tableName, predicate.getPath(), predicate.getUsage(), predicate.getCast());
+            Usage usage = usages.get(key);
+            if (usage == null) {
+                if (usages.size() >= maxSize)
+                    continue;
+                usage = usages.computeIfAbsent(key, k -> new Usage());
+            }
+            usage.add(predicate.getOperator(), millis, rows);
+        }
+    }
+
+    public List<IndexRecommendationDto> getRecommendations() {
+        Map<String, List<PropertyIndexDto>> indexes = new HashMap<>();
+        List<IndexRecommendationDto> recommendations = new ArrayList<>();
+
+        for (Map.Entry<Key, Usage> entry : usages.entrySet()) {
+            Key key = entry.getKey();
+            Usage usage = entry.getValue();
+
+            // only these casts are written by the property indexes
+            if (!key.cast.equals("int") && !key.cast.equals("bool") && !key.cast.equals("text"))
+                continue;
+
+            long executions = usage.executions.get();
+            double avgMillis = (double) usage.totalMillis.get() / Math.max(executions, 1);
+            if (executions < minExecutions || avgMillis < minAvgMillis)
+                continue;
+
+            IndexRecommendationDto dto = new IndexRecommendationDto();
+            dto.setBucketId(Long.parseLong(key.tableName.substring(TABLE_PREFIX.length())));
+            dto.setPath(key.path);
+            dto.setUsage(key.usage);
+            dto.setCast(key.cast);
+            dto.setOperators(new TreeSet<>(usage.operators));
+            dto.setExecutions(executions);
+            dto.setAvgMillis(avgMillis);
+            dto.setAvgRows((double) usage.totalRows.get() / Math.max(executions, 1));
+
+            List<PropertyIndexDto> tableIndexes = indexes.computeIfAbsent(key.tableName, propertyIndexService::getIndexes);
+            dto.setIndexed(tableIndexes.stream().anyMatch(index -> index.isValid()
+                    && key.path.equals(index.getPath())
+                    && key.usage.equals(index.getUsage())
+                    && key.cast.equals(PropertyIndexService.getIndexedCast(index.getType(), index.getUsage()))));
+            recommendations.add(dto);
+        }
+
+        // the most time consuming first
+        recommendations.sort((a, b) -> Double.compare(b.getAvgMillis() * b.getExecutions(), a.getAvgMillis() * a.getExecutions()));
+        return recommendations;
+    }
+
+    // Opt-in, the cron expression "-" turns it off
+    @Scheduled(cron = "${databucket.index-advisor.auto-create-cron:-}")
+    public void createRecommendedIndexes() {
+        long windowEnd = System.currentTimeMillis() + maintenanceWindowMillis;
+
+        for (IndexRecommendationDto recommendation : getRecommendations()) {
+            if (System.currentTimeMillis() > windowEnd) {
+                logger.info("The maintenance window is over, the remaining indexes are left for the next one");
+                break;
+            }
+            if (recommendation.isIndexed())
+                continue;
+
+            // the class is read in a transaction, the index can not be built in one
+            String type = transactionTemplate.execute(status -> {
+                Bucket bucket = bucketRepository.findByIdAndDeleted(recommendation.getBucketId(), false);
+                try {
+                    return bucket != null ? propertyIndexService.getPropertyType(bucket, recommendation.getPath()) : null;
+                } catch (Exception e) {
+                    return null; // the property is not described by the class of the bucket
+                }
+            });
+
+            if (type == null || !recommendation.getCast().equals(PropertyIndexService.getIndexedCast(type, recommendation.getUsage())))
+                continue;
+
+            try {
+                PropertyIndexDto index = propertyIndexService.createIndex(TABLE_PREFIX + recommendation.getBucketId(), recommendation.getPath(), type, recommendation.getUsage());
+                logger.info("Created the recommended index " + index.getName() + " on " + index.getExpression());
+            } catch (ItemAlreadyExistsException e) {
+                // created in the meantime
+            } catch (Exception e) {
+                logger.warn("Failed to create the recommended index for " + recommendation.getPath() + " in bucket " + recommendation.getBucketId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void clear() {
+        usages.clear();
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class Key {
+        private final String tableName;
+        private final String path;
+        private final String usage;
+        private final String cast;
+    }
+
+    private static class Usage {
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong totalRows = new AtomicLong();
+        private final Set<String> operators = ConcurrentHashMap.newKeySet();
+
+        void add(String operator, long millis, int rows) {
+            executions.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            totalRows.addAndGet(rows);
+            if (operator != null)
+                operators.add(operator);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package pl.databucket.service.data;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * State of a long-running data operation stored in the jobs table.
+ */
+@Getter
+@Setter
+public class Job {
+
+    public enum Type {DELETE_DATA, MODIFY_DATA, MODIFY_ITEMS}
+
+    public enum Status {QUEUED, RUNNING, DONE, FAILED, CANCELLED}
+
+    private long id;
+    private Type type;
+    private Status status;
+    @JsonIgnore
+    private Integer projectId;
+    @JsonIgnore
+    private long bucketId;
+    private String bucketName;
+    @JsonIgnore
+    private String request;
+    @JsonIgnore
+    private long checkpoint;
+    private long processed;
+    private boolean cancelRequested;
+    private String error;
+    private String createdBy;
+    private Date createdAt;
+    private Date startedAt;
+    private Date finishedAt;
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+}
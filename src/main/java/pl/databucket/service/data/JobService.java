@@ -0,0 +1,374 @@
+package pl.databucket.service.data;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import pl.databucket.configuration.Json;
+import pl.databucket.dto.DataModifyDto;
+import pl.databucket.dto.DataModifyItemDto;
+import pl.databucket.dto.DataRemoveDto;
+import pl.databucket.entity.Bucket;
+import pl.databucket.exception.BucketNotFoundException;
+import pl.databucket.exception.NoAccessToBucketException;
+import pl.databucket.repository.BucketRepository;
+import pl.databucket.security.CustomUserDetails;
+import pl.databucket.security.PrincipalCache;
+import pl.databucket.security.PrincipalSnapshot;
+import pl.databucket.service.BucketCache;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs long-running data operations (deletes and modifications by rules, modifications of many items) as jobs.
+ * A job is stored in the jobs table and executed in chunks by a bounded pool of workers; after every chunk its
+ * checkpoint is saved and the cancellation is checked. Jobs that do not fit into the queue of the workers, and
+ * jobs interrupted by a restart (running without a checkpoint for stale-seconds), are picked up by the poller,
+ * so a chunk can be executed again after a restart. While a job runs its worker refreshes it by a heartbeat; a
+ * claim token identifies the worker, a worker whose job has been claimed by another one stops at its next chunk.
+ */
+@Service
+public class JobService {
+
+    private static final ObjectMapper mapper = Json.MAPPER;
+    private static final String COLUMNS = "job_id, job_type, status, project_id, bucket_id, bucket_name, request, checkpoint,"
+            + " processed, cancel_requested, error, created_by, created_at, started_at, finished_at";
+    private static final RowMapper<Job> JOB_ROW_MAPPER = (rs, rowNum) -> {
+        Job job = new Job();
+        job.setId(rs.getLong("job_id"));
+        job.setType(Job.Type.valueOf(rs.getString("job_type")));
+        job.setStatus(Job.Status.valueOf(rs.getString("status")));
+        job.setProjectId(rs.getInt("project_id"));
+        job.setBucketId(rs.getLong("bucket_id"));
+        job.setBucketName(rs.getString("bucket_name"));
+        job.setRequest(rs.getString("request"));
+        job.setCheckpoint(rs.getLong("checkpoint"));
+        job.setProcessed(rs.getLong("processed"));
+        job.setCancelRequested(rs.getBoolean("cancel_requested"));
+        job.setError(rs.getString("error"));
+        job.setCreatedBy(rs.getString("created_by"));
+        job.setCreatedAt(rs.getTimestamp("created_at"));
+        job.setStartedAt(rs.getTimestamp("started_at"));
+        job.setFinishedAt(rs.getTimestamp("finished_at"));
+        return job;
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(JobService.class);
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    private final DataService dataService;
+    private final BucketRepository bucketRepository;
+    private final BucketCache bucketCache;
+    private final PrincipalCache principalCache;
+    private final TransactionTemplate transactionTemplate;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService heartbeatExecutor;
+    // jobs queued or executed by this instance
+    private final Set<Long> localJobs = ConcurrentHashMap.newKeySet();
+    // claim tokens of the jobs running in this instance
+    private final Map<Long, String> runningJobs = new ConcurrentHashMap<>();
+    private final int chunkSize;
+    private final int staleSeconds;
+
+    public JobService(NamedParameterJdbcTemplate jdbcTemplate, DataService dataService, BucketRepository bucketRepository,
+                      BucketCache bucketCache, PrincipalCache principalCache, PlatformTransactionManager transactionManager,
+                      @Value("${databucket.jobs.workers:2}") int workers,
+                      @Value("${databucket.jobs.queue-size:100}") int queueSize,
+                      @Value("${databucket.data.chunk-size:1000}") int chunkSize,
+                      @Value("${databucket.jobs.stale-seconds:300}") int staleSeconds,
+                      @Value("${databucket.jobs.heartbeat-seconds:60}") int heartbeatSeconds) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataService = dataService;
+        this.bucketRepository = bucketRepository;
+        this.bucketCache = bucketCache;
+        this.principalCache = principalCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.chunkSize = chunkSize;
+        this.staleSeconds = staleSeconds;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "data-job-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // not run by the scheduler of the application, a long scheduled task must not delay it
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "data-job-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    public Job submitDeleteData(PrincipalSnapshot user, BucketDescriptor bucket, DataRemoveDto dataRemoveDto) throws JsonProcessingException {
+        ObjectNode request = mapper.createObjectNode();
+        request.set("request", mapper.valueToTree(dataRemoveDto));
+        return submit(user, bucket, Job.Type.DELETE_DATA, request);
+    }
+
+    public Job submitModifyData(PrincipalSnapshot user, BucketDescriptor bucket, Optional<List<Long>> dataIds, DataModifyDto dataModifyDto) throws JsonProcessingException {
+        ObjectNode request = mapper.createObjectNode();
+        dataIds.ifPresent(ids -> request.set("ids", mapper.valueToTree(ids)));
+        request.set("request", mapper.valueToTree(dataModifyDto));
+        return submit(user, bucket, Job.Type.MODIFY_DATA, request);
+    }
+
+    public Job submitModifyItems(PrincipalSnapshot user, BucketDescriptor bucket, List<DataModifyItemDto> items) throws JsonProcessingException {
+        DataService.checkItems(items);
+        ObjectNode request = mapper.createObjectNode();
+        request.set("request", mapper.valueToTree(items));
+        return submit(user, bucket, Job.Type.MODIFY_ITEMS, request);
+    }
+
+    // Job of the user in the current project, or null when it does not exist
+    public Job getJob(PrincipalSnapshot user, long jobId) {
+        List<Job> jobs = jdbcTemplate.query("SELECT " + COLUMNS + " FROM jobs"
+                + " WHERE job_id = :jobId AND project_id = :projectId AND created_by = :createdBy", getJobParams(user, jobId), JOB_ROW_MAPPER);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    // A queued job is cancelled at once, a running job stops after the current chunk
+    public Job cancelJob(PrincipalSnapshot user, long jobId) {
+        jdbcTemplate.update("UPDATE jobs SET cancel_requested = true,"
+                + " finished_at = CASE WHEN status = 'QUEUED' THEN localtimestamp ELSE finished_at END,"
+                + " status = CASE WHEN status = 'QUEUED' THEN 'CANCELLED' ELSE status END"
+                + " WHERE job_id = :jobId AND project_id = :projectId AND created_by = :createdBy"
+                + " AND status IN ('QUEUED', 'RUNNING')", getJobParams(user, jobId));
+        return getJob(user, jobId);
+    }
+
+    // Submits the queued jobs and the jobs abandoned by a stopped instance, as many as fit into the queue
+    @Scheduled(fixedDelayString = "${databucket.jobs.poll-interval:30000}")
+    public void resumeJobs() {
+        int capacity = executor.getQueue().remainingCapacity();
+        if (capacity == 0)
+            return;
+
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("staleSeconds", staleSeconds)
+                .addValue("limit", capacity + localJobs.size());
+
+        try {
+            List<Long> jobIds = jdbcTemplate.queryForList("SELECT job_id FROM jobs"
+                    + " WHERE status = 'QUEUED' OR (status = 'RUNNING' AND updated_at < localtimestamp - :staleSeconds * interval '1 second')"
+                    + " ORDER BY job_id LIMIT :limit", params, Long.class);
+
+            for (Long jobId : jobIds)
+                if (!localJobs.contains(jobId))
+                    schedule(jobId);
+        } catch (DataAccessException e) {
+            logger.warn("Failed to resume the jobs: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // the interrupted jobs are resumed from their checkpoints
+        heartbeatExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    // Keeps the jobs running in this instance from being taken over as stale while a chunk is executed
+    private void heartbeat() {
+        for (Map.Entry<Long, String> job : runningJobs.entrySet()) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                    .addValue("jobId", job.getKey())
+                    .addValue("claimToken", job.getValue());
+            try {
+                jdbcTemplate.update("UPDATE jobs SET updated_at = localtimestamp"
+                        + " WHERE job_id = :jobId AND claim_token = :claimToken AND status = 'RUNNING'", params);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to refresh the job " + job.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Job submit(PrincipalSnapshot user, BucketDescriptor bucket, Job.Type type, ObjectNode request) throws JsonProcessingException {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("type", type.name())
+                .addValue("projectId", bucket.getProjectId())
+                .addValue("bucketId", bucket.getId())
+                .addValue("bucketName", bucket.getName())
+                .addValue("request", mapper.writeValueAsString(request))
+                .addValue("createdBy", user.getUsername());
+
+        Job job = jdbcTemplate.queryForObject("INSERT INTO jobs (job_type, status, project_id, bucket_id, bucket_name, request, created_by)"
+                + " VALUES (:type, 'QUEUED', :projectId, :bucketId, :bucketName, CAST(:request AS jsonb), :createdBy)"
+                + " RETURNING " + COLUMNS, params, JOB_ROW_MAPPER);
+
+        schedule(job.getId());
+        return job;
+    }
+
+    private void schedule(long jobId) {
+        if (!localJobs.add(jobId))
+            return;
+
+        try {
+            executor.execute(() -> run(jobId));
+        } catch (RejectedExecutionException e) {
+            // the job stays queued in the table until the poller finds a free place
+            localJobs.remove(jobId);
+        }
+    }
+
+    private void run(long jobId) {
+        String claimToken = UUID.randomUUID().toString();
+        try {
+            Job job = claim(jobId, claimToken);
+            if (job == null)
+                return;
+
+            if (job.isCancelRequested()) {
+                finish(jobId, claimToken, Job.Status.CANCELLED, null);
+                return;
+            }
+
+            runningJobs.put(jobId, claimToken);
+            try {
+                Job.Status status = execute(job, claimToken);
+                if (status != null)
+                    finish(jobId, claimToken, status, null);
+                else
+                    logger.warn("The job " + jobId + " has been claimed by another worker, it is left to it");
+            } catch (Exception e) {
+                logger.warn("The job " + jobId + " failed: " + e.getMessage());
+                finish(jobId, claimToken, Job.Status.FAILED, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            }
+        } catch (DataAccessException e) {
+            logger.warn("Failed to update the job " + jobId + ": " + e.getMessage());
+        } finally {
+            runningJobs.remove(jobId);
+            localJobs.remove(jobId);
+        }
+    }
+
+    // Marks the job as running by the given claim token, returns null when it is executed by another worker or it is
+    // not waiting any more
+    private Job claim(long jobId, String claimToken) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("jobId", jobId)
+                .addValue("claimToken", claimToken)
+                .addValue("staleSeconds", staleSeconds);
+
+        List<Job> jobs = jdbcTemplate.query("UPDATE jobs SET status = 'RUNNING', claim_token = :claimToken,"
+                + " started_at = coalesce(started_at, localtimestamp), updated_at = localtimestamp"
+                + " WHERE job_id = :jobId AND (status = 'QUEUED' OR (status = 'RUNNING' AND updated_at < localtimestamp - :staleSeconds * interval '1 second'))"
+                + " RETURNING " + COLUMNS, params, JOB_ROW_MAPPER);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    // Executes the job from its checkpoint, returns the final status of the job, or null when the job has been claimed
+    // by another worker in the meantime
+    private Job.Status execute(Job job, String claimToken) throws Exception {
+        PrincipalSnapshot user = principalCache.getPrincipal(job.getCreatedBy(), "job");
+        if (user == null || !user.isEnabled())
+            throw new IllegalStateException("The user '" + job.getCreatedBy() + "' is not active!");
+
+        // the access check reads the lazy relations of the bucket
+        BucketDescriptor bucket = transactionTemplate.execute(status -> {
+            Bucket entity = bucketRepository.findByIdAndDeleted(job.getBucketId(), false);
+            return entity != null ? new BucketDescriptor(entity) : null;
+        });
+        if (bucket == null)
+            throw new BucketNotFoundException(job.getBucketName());
+        if (!Boolean.TRUE.equals(transactionTemplate.execute(status -> bucketCache.hasUserAccessToBucket(bucket, user))))
+            throw new NoAccessToBucketException(job.getBucketName());
+
+        AtomicReference<Job.Status> result = new AtomicReference<>(Job.Status.DONE);
+        DataChunkListener listener = (checkpoint, count) -> {
+            result.set(checkpoint(job.getId(), claimToken, checkpoint, count));
+            return result.get() == Job.Status.DONE;
+        };
+
+        JsonNode request = mapper.readTree(job.getRequest());
+        switch (job.getType()) {
+            case DELETE_DATA: {
+                DataRemoveDto dataRemoveDto = mapper.treeToValue(request.get("request"), DataRemoveDto.class);
+                dataService.deleteDataByRules(user, bucket, new QueryRule(dataRemoveDto), job.getCheckpoint(), listener);
+                break;
+            }
+            case MODIFY_DATA: {
+                DataModifyDto dataModifyDto = mapper.treeToValue(request.get("request"), DataModifyDto.class);
+                QueryRule queryRule = new QueryRule(dataModifyDto);
+                if (request.has("ids"))
+                    queryRule.getConditions().add(new Condition(COL.DATA_ID, Operator.in, mapper.convertValue(request.get("ids"), new TypeReference<List<Long>>() {})));
+                dataService.modifyData(user, bucket, dataModifyDto, queryRule, job.getCheckpoint(), listener);
+                break;
+            }
+            case MODIFY_ITEMS: {
+                // the checkpoint is the number of modified items
+                List<DataModifyItemDto> items = mapper.convertValue(request.get("request"), new TypeReference<List<DataModifyItemDto>>() {});
+                for (int from = (int) job.getCheckpoint(); from < items.size(); from += chunkSize) {
+                    int to = Math.min(from + chunkSize, items.size());
+                    int count = dataService.modifyData(user, bucket, items.subList(from, to));
+                    if (!listener.onChunk(to, count))
+                        break;
+                }
+                break;
+            }
+        }
+        return result.get();
+    }
+
+    // Saves the checkpoint of the job while it is claimed by the given token. Returns DONE to go on, CANCELLED when
+    // the job has been cancelled, or null when another worker has claimed it.
+    private Job.Status checkpoint(long jobId, String claimToken, long checkpoint, int count) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("jobId", jobId)
+                .addValue("claimToken", claimToken)
+                .addValue("checkpoint", checkpoint)
+                .addValue("count", count);
+
+        List<Boolean> cancelRequested = jdbcTemplate.queryForList("UPDATE jobs SET checkpoint = :checkpoint, processed = processed + :count, updated_at = localtimestamp"
+                + " WHERE job_id = :jobId AND claim_token = :claimToken RETURNING cancel_requested", params, Boolean.class);
+        if (cancelRequested.isEmpty())
+            return null;
+        return Boolean.TRUE.equals(cancelRequested.get(0)) ? Job.Status.CANCELLED : Job.Status.DONE;
+    }
+
+    private void finish(long jobId, String claimToken, Job.Status status, String error) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("jobId", jobId)
+                .addValue("claimToken", claimToken)
+                .addValue("status", status.name())
+                .addValue("error", error);
+
+        jdbcTemplate.update("UPDATE jobs SET status = :status, error = :error, finished_at = localtimestamp, updated_at = localtimestamp"
+                + " WHERE job_id = :jobId AND claim_token = :claimToken", params);
+    }
+
+    private static MapSqlParameterSource getJobParams(PrincipalSnapshot user, long jobId) {
+        CustomUserDetails customUserDetails = (CustomUserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        return new MapSqlParameterSource()
+                .addValue("jobId", jobId)
+                .addValue("projectId", customUserDetails.getProjectId())
+                .addValue("createdBy", user.getUsername());
+    }
+}
@@ -0,0 +1,189 @@
+package pl.databucket.service.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import pl.databucket.configuration.Json;
+import pl.databucket.dto.DataClassItemDto;
+import pl.databucket.dto.PropertyIndexDto;
+import pl.databucket.entity.Bucket;
+import pl.databucket.exception.ItemAlreadyExistsException;
+import pl.databucket.exception.ItemNotFoundException;
+import pl.databucket.exception.UnexpectedException;
+import pl.databucket.exception.UnknownColumnException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expression indexes on the properties of a bucket. The expressions are taken from Query, so they are the same as
+ * the ones in the generated conditions and the planner can use the indexes. The declaration (path, type and usage)
+ * is kept in the comment of the index.
+ */
+@Service
+public class PropertyIndexService {
+
+    public static final String USAGE_FILTER = "filter";
+    public static final String USAGE_SORT = "sort";
+    // LIKE, SIMILAR TO and regular expressions on the text of the property; the index serves the patterns anchored
+    // at the start, e.g. 'abc%'
+    public static final String USAGE_PATTERN = "pattern";
+
+    private static final ObjectMapper mapper = Json.MAPPER;
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+    Logger logger = LoggerFactory.getLogger(PropertyIndexService.class);
+
+    public PropertyIndexService(NamedParameterJdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public List<PropertyIndexDto> getIndexes(Bucket bucket) {
+        return getIndexes(bucket.getTableName());
+    }
+
+    public List<PropertyIndexDto> getIndexes(String tableName) {
+        Map<String, Object> paramMap = new HashMap<>();
+        paramMap.put("table", "\"" + tableName + "\"");
+        paramMap.put("prefix", getIndexPrefix(tableName) + "%");
+
+        String sql = "SELECT i.relname AS name, pg_get_expr(ix.indexprs, ix.indrelid) AS expression, ix.indisvalid AS valid, obj_description(i.oid, 'pg_class') AS declaration"
+                + " FROM pg_index ix JOIN pg_class i ON i.oid = ix.indexrelid"
+                + " WHERE ix.indrelid = to_regclass(:table) AND i.relname LIKE :prefix ORDER BY i.relname";
+
+        return jdbcTemplate.query(sql, paramMap, (rs, rowNum) -> {
+            PropertyIndexDto dto = new PropertyIndexDto();
+            String declaration = rs.getString("declaration");
+            if (declaration != null) {
+                try {
+                    dto = mapper.readValue(declaration, PropertyIndexDto.class);
+                } catch (IOException e) {
+                    logger.warn("Wrong declaration of the index " + rs.getString("name") + ": " + declaration);
+                }
+            }
+            dto.setName(rs.getString("name"));
+            dto.setExpression(rs.getString("expression"));
+            dto.setValid(rs.getBoolean("valid"));
+            return dto;
+        });
+    }
+
+    // Builds the index without locking the writes to the bucket. It can take a while on a large bucket.
+    public PropertyIndexDto createIndex(Bucket bucket, String path, String usage) throws ItemNotFoundException, ItemAlreadyExistsException, UnknownColumnException, UnexpectedException {
+        if (path == null || path.isEmpty())
+            throw new IllegalArgumentException("The property path is required!");
+
+        String jsonPath = path.startsWith("$.") ? path : "$." + path;
+        return createIndex(bucket.getTableName(), jsonPath, getPropertyType(bucket, jsonPath), usage);
+    }
+
+    public PropertyIndexDto createIndex(String tableName, String jsonPath, String type, String usage) throws ItemAlreadyExistsException, UnknownColumnException, UnexpectedException {
+        Query query = new Query(tableName);
+        String expression;
+        String operatorClass = "";
+        if (USAGE_SORT.equals(usage))
+            expression = query.getPropertySortExpression(jsonPath);
+        else if (USAGE_PATTERN.equals(usage)) {
+            // compares the characters, so the patterns can use it whatever the collation of the database is
+            expression = query.getPropertySortExpression(jsonPath);
+            operatorClass = " text_pattern_ops";
+        } else if (USAGE_FILTER.equals(usage)) {
+            // dates are compared as text::timestamp, this cast depends on the session settings and can not be indexed
+            if (type.equals("datetime") || type.equals("date") || type.equals("time"))
+                throw new IllegalArgumentException("Conditions on date and time properties can not use an index, declare the '" + USAGE_SORT + "' usage instead!");
+            expression = query.getPropertyConditionExpression(jsonPath, type);
+        } else
+            throw new IllegalArgumentException("The usage must be '" + USAGE_FILTER + "', '" + USAGE_SORT + "' or '" + USAGE_PATTERN + "'!");
+
+        String name = getIndexPrefix(tableName) + hash(usage + ":" + expression);
+        for (PropertyIndexDto index : getIndexes(tableName))
+            if (index.getName().equals(name)) {
+                if (index.isValid())
+                    throw new ItemAlreadyExistsException(PropertyIndexDto.class, name);
+                else
+                    dropIndex(name);
+            }
+
+        PropertyIndexDto dto = new PropertyIndexDto();
+        dto.setPath(jsonPath);
+        dto.setType(type);
+        dto.setUsage(usage);
+
+        String sql = "CREATE INDEX CONCURRENTLY \"" + name + "\" ON \"" + tableName + "\" ((" + expression + ")" + operatorClass + ")";
+        logger.debug(sql);
+        try {
+            jdbcTemplate.getJdbcTemplate().execute(sql);
+            jdbcTemplate.getJdbcTemplate().execute("COMMENT ON INDEX \"" + name + "\" IS '" + mapper.writeValueAsString(dto).replace("'", "''") + "'");
+        } catch (DataAccessException | IOException e) {
+            // a failed concurrent build leaves an invalid index behind
+            dropIndex(name);
+            throw new UnexpectedException(e);
+        }
+
+        dto.setName(name);
+        dto.setExpression(expression);
+        dto.setValid(true);
+        return dto;
+    }
+
+    public void dropIndex(Bucket bucket, String name) throws ItemNotFoundException {
+        if (!name.startsWith(getIndexPrefix(bucket)) || getIndexes(bucket).stream().noneMatch(index -> index.getName().equals(name)))
+            throw new ItemNotFoundException(PropertyIndexDto.class, name);
+        dropIndex(name);
+    }
+
+    private void dropIndex(String name) {
+        String sql = "DROP INDEX CONCURRENTLY IF EXISTS \"" + name + "\"";
+        logger.debug(sql);
+        jdbcTemplate.getJdbcTemplate().execute(sql);
+    }
+
+    // Type of the property given by the class of the bucket
+    public String getPropertyType(Bucket bucket, String jsonPath) throws ItemNotFoundException {
+        if (bucket.getDataClass() != null && bucket.getDataClass().getConfiguration() != null)
+            for (DataClassItemDto item : bucket.getDataClass().getConfiguration())
+                if (item.getPath() != null && jsonPath.equals(item.getPath().startsWith("$.") ? item.getPath() : "$." + item.getPath()))
+                    return item.getType() != null ? item.getType() : "string";
+
+        throw new ItemNotFoundException(DataClassItemDto.class, jsonPath);
+    }
+
+    // Cast of the property in the expression of the index with the given type and usage, the sort and pattern indexes
+    // are on the text of the property
+    public static String getIndexedCast(String type, String usage) {
+        if (USAGE_FILTER.equals(usage) && "numeric".equals(type))
+            return "int";
+        else if (USAGE_FILTER.equals(usage) && "boolean".equals(type))
+            return "bool";
+        else
+            return "text";
+    }
+
+    private String getIndexPrefix(Bucket bucket) {
+        return getIndexPrefix(bucket.getTableName());
+    }
+
+    private String getIndexPrefix(String tableName) {
+        return tableName + "-p-";
+    }
+
+    private String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 6; i++)
+                result.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
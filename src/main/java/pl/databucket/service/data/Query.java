@@ -1,8 +1,10 @@
 package pl.databucket.service.data;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.text.DateFormat;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -10,8 +12,10 @@ import java.util.stream.Collectors;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
+import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 
+import pl.databucket.configuration.Json;
 import pl.databucket.dto.CustomColumnDto;
 import pl.databucket.dto.DataModifyDto;
 import pl.databucket.exception.ConditionNotAllowedException;
@@ -19,14 +23,43 @@ import pl.databucket.exception.UnknownColumnException;
 
 public class Query {
 
-    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectMapper mapper = Json.MAPPER;
+    private static final String PROPERTIES_PATCH = "properties_patch";
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(() -> {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setLenient(false);
+        return dateFormat;
+    });
     String query;
     String table;
+    int whereIndex = -1;
+    boolean bindPropertyPaths = false;
+    // types of the class items, selected properties of these paths are extracted and cast by the database
+    Map<String, String> propertyTypes = Collections.emptyMap();
+    // parameters of the bound property paths, they are added to the paramMap by toString
+    Map<String, Object> boundParams = new HashMap<>();
+    // property conditions and sorts of the query, collected for the index advisor
+    List<QueryPredicate> predicates = new ArrayList<>();
+
+    // used only while a template is compiled
+    private List<QueryTemplate.Slot> templateSlots;
+    private int conditionIndex;
 
     public Query(String table) {
         this.table = table;
     }
 
+    // Property paths and json patches are passed as parameters instead of literals, so the SQL text repeats
+    public Query bindPropertyPaths(boolean bindPropertyPaths) {
+        this.bindPropertyPaths = bindPropertyPaths;
+        return this;
+    }
+
+    public Query propertyTypes(Map<String, String> propertyTypes) {
+        this.propertyTypes = propertyTypes;
+        return this;
+    }
+
     public Query select(String column) throws UnknownColumnException {
         query = "SELECT " + column;
         return this;
@@ -62,6 +95,11 @@ public class Query {
         return this;
     }
 
+    /**
+     * Sets the properties column to a flat chain of path specific changes: the removed paths with #-, then the set
+     * values with jsonb_set. Values of nested objects are set one by one, so they are merged into the existing
+     * objects, and missing or non-object intermediate nodes are replaced by objects by jsonb_set_path.
+     */
     public Query removeAndSetProperties(boolean execute, DataModifyDto dataModifyDto) throws JsonProcessingException {
         if (execute) {
             List<String> propertiesToRemove = dataModifyDto.getPropertiesToRemove();
@@ -72,55 +110,50 @@ public class Query {
                 else
                     query += " properties = ";
 
-                if (propertiesToRemove != null && propertiesToRemove.size() > 0 && propertiesToUpdate != null && propertiesToUpdate.size() > 0) {
-                    String remove = "properties ";
+                String properties = "properties";
+                if (propertiesToRemove != null)
                     for (String prop : propertiesToRemove)
-                        remove += "#- '{" + prop.replace("$.", "").replace(".", ",") + "}' ";
-
-                    Map<String, Object> jsonMap = new HashMap<>();
-                    for (Map.Entry<String, Object> prop : propertiesToUpdate.entrySet()) {
-                        String[] pathNodes = prop.getKey().replace("$.", "").split("\\.");
-                        updateJson(jsonMap, pathNodes, prop.getValue());
-                    }
-                    query += "jsonb_merge(" + remove + ", '" + mapper.writer().writeValueAsString(jsonMap) + "'::jsonb)";
-                } else if (propertiesToRemove != null && propertiesToRemove.size() > 0) {
-                    query += "properties ";
-                    for (String prop : propertiesToRemove)
-                        query += "#- '{" + prop.replace("$.", "").replace(".", ",") + "}' ";
-                } else if (propertiesToUpdate != null && propertiesToUpdate.size() > 0) {
-                    Map<String, Object> jsonMap = new HashMap<>();
-                    for (Map.Entry<String, Object> prop : propertiesToUpdate.entrySet()) {
-                        String[] pathNodes = prop.getKey().replace("$.", "").split("\\.");
-                        updateJson(jsonMap, pathNodes, prop.getValue());
+                        properties += " #- " + propertyPath(prop.replace("$.", "").replace(".", ","));
+
+                if (propertiesToUpdate != null) {
+                    Map<List<String>, Object> leaves = new LinkedHashMap<>();
+                    for (Map.Entry<String, Object> prop : propertiesToUpdate.entrySet())
+                        collectLeaves(Arrays.asList(prop.getKey().replace("$.", "").split("\\.")), prop.getValue(), leaves);
+
+                    int index = 0;
+                    for (Map.Entry<List<String>, Object> leaf : leaves.entrySet()) {
+                        List<String> pathNodes = leaf.getKey();
+                        String path = propertyPath(String.join(",", pathNodes));
+                        if (leaf.getValue() instanceof Map)
+                            // empty object, it only makes sure there is an object at the path
+                            properties = "jsonb_set_path(" + properties + ", " + path + ", NULL)";
+                        else {
+                            String value = jsonbValue(mapper.writer().writeValueAsString(leaf.getValue()), index++);
+                            if (pathNodes.size() == 1)
+                                properties = "jsonb_set(" + properties + ", " + path + ", " + value + ")";
+                            else
+                                properties = "jsonb_set_path(" + properties + ", " + path + ", " + value + ")";
+                        }
                     }
-                    query += "jsonb_merge(properties, '" + mapper.writer().writeValueAsString(jsonMap) + "'::jsonb)";
                 }
+
+                query += properties;
             }
         }
 
         return this;
     }
 
-    public void updateJson(Map<String, Object> map, String[] pathNodes, Object value) {
-        String nodeName = pathNodes[0];
-        if (pathNodes.length > 1) {
-            String[] subPathNodes = Arrays.copyOfRange(pathNodes, 1, pathNodes.length);
-            if (map.containsKey(nodeName)) {
-                Map<String, Object> subNode = (Map<String, Object>) map.get(nodeName);
-                if (subNode != null)
-                    updateJson((Map<String, Object>) map.get(nodeName), subPathNodes, value);
-                else {
-                    subNode = new HashMap<>();
-                    map.put(nodeName, subNode);
-                    updateJson(subNode, subPathNodes, value);
-                }
-            } else {
-                Map<String, Object> subNode = new HashMap<>();
-                map.put(pathNodes[0], subNode);
-                updateJson(subNode, subPathNodes, value);
+    @SuppressWarnings("unchecked")
+    private void collectLeaves(List<String> path, Object value, Map<List<String>, Object> leaves) {
+        if (value instanceof Map && !((Map<String, Object>) value).isEmpty()) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                List<String> subPath = new ArrayList<>(path);
+                subPath.add(entry.getKey());
+                collectLeaves(subPath, entry.getValue(), leaves);
             }
         } else
-            map.put(pathNodes[0], value);
+            leaves.put(path, value);
     }
 
     public Query insertIntoValues(MapSqlParameterSource mapParameters) {
@@ -128,6 +161,33 @@ public class Query {
         return this;
     }
 
+    public Query insertIntoValues(List<Map<String, Object>> rows, Map<String, Object> paramMap) {
+        // every row has to contain the same set of columns
+        List<String> columns = new ArrayList<>(rows.get(0).keySet());
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            List<String> rowValues = new ArrayList<>();
+            for (String column : columns) {
+                String paramName = column + "_" + i;
+                paramMap.put(paramName, rows.get(i).get(column));
+                rowValues.add(":" + paramName);
+            }
+            values.add("(" + String.join(", ", rowValues) + ")");
+        }
+        query = "INSERT INTO \"" + table + "\" (\"" + String.join("\", \"", columns) + "\") VALUES " + String.join(", ", values);
+        return this;
+    }
+
+    public Query returning(String columns) {
+        query += " RETURNING " + columns;
+        return this;
+    }
+
+    public Query returningData(List<CustomColumnDto> columns) throws UnknownColumnException {
+        query += " RETURNING " + (columns != null ? columnsToString(columns) : "*");
+        return this;
+    }
+
     public Query dropTable() {
         query = "DROP TABLE \"" + table + "\"";
         return this;
@@ -139,14 +199,34 @@ public class Query {
     }
 
     public Query where(QueryRule queryRule, Map<String, Object> paramMap) throws UnknownColumnException, ConditionNotAllowedException {
-        String rules = generateQueryRulesString("n", queryRule, paramMap);
-        if (rules.length() > 0)
+        return where(queryRule, paramMap, null);
+    }
+
+    public Query where(QueryRule queryRule, Map<String, Object> paramMap, QueryTemplateCache templateCache) throws UnknownColumnException, ConditionNotAllowedException {
+        String rules;
+        if (templateCache != null) {
+            String shape = (bindPropertyPaths ? "bound:" : "literal:") + QueryTemplate.getShape(queryRule);
+            QueryTemplate template = templateCache.get(shape);
+            if (template == null) {
+                template = compile(queryRule);
+                templateCache.put(shape, template);
+            }
+            rules = template.bind(queryRule, paramMap);
+            boundParams.putAll(template.getBoundParams());
+            predicates.addAll(template.getPredicates());
+        } else
+            rules = generateQueryRulesString("n", queryRule, paramMap);
+
+        if (rules.length() > 0) {
+            whereIndex = query.length() + " WHERE ".length();
             query += " WHERE " + rules;
+        }
         return this;
     }
 
     public Query where(Condition condition, Map<String, Object> paramMap) throws UnknownColumnException, ConditionNotAllowedException {
         if (condition != null) {
+            whereIndex = query.length() + " WHERE ".length();
             query += " WHERE " + generateConditionString("n", condition, paramMap);
         }
         return this;
@@ -159,6 +239,7 @@ public class Query {
                 for (int i = 0; i < conditions.size(); i++) {
                     condStr += generateConditionString("n" + i, conditions.get(i), paramMap) + " and ";
                 }
+                whereIndex = query.length() + " WHERE ".length();
                 query += " WHERE " + condStr.substring(0, condStr.length() - " and ".length());
             } else if (conditions.size() > 0)
                 where(conditions.get(0), paramMap);
@@ -166,7 +247,32 @@ public class Query {
         return this;
     }
 
+    // Generates the rules string and records where the constants of the conditions are bound
+    private QueryTemplate compile(QueryRule queryRule) throws UnknownColumnException, ConditionNotAllowedException {
+        templateSlots = new ArrayList<>();
+        conditionIndex = -1;
+        Map<String, Object> previousBoundParams = boundParams;
+        List<QueryPredicate> previousPredicates = predicates;
+        boundParams = new HashMap<>();
+        predicates = new ArrayList<>();
+        try {
+            String rules = generateQueryRulesString("n", queryRule, new HashMap<>());
+            return new QueryTemplate(rules, templateSlots, boundParams, predicates);
+        } finally {
+            previousBoundParams.putAll(boundParams);
+            previousPredicates.addAll(predicates);
+            boundParams = previousBoundParams;
+            predicates = previousPredicates;
+            templateSlots = null;
+        }
+    }
+
     private String getConditionStringValue(String uniqueName, SourceType sourceType, Object value, Map<String, Object> paramMap) {
+        return getConditionStringValue(uniqueName, sourceType, value, paramMap, true, QueryTemplate.ValueFormat.raw);
+    }
+
+    // The left flag and the format describe how the value was taken from the condition, they are used by the template
+    private String getConditionStringValue(String uniqueName, SourceType sourceType, Object value, Map<String, Object> paramMap, boolean left, QueryTemplate.ValueFormat format) {
         if (sourceType.equals(SourceType.s_function)) {
             String sValue = (String) value;
             if (sValue.startsWith("$.") && sValue.endsWith(")")) {
@@ -175,15 +281,15 @@ public class Query {
                 String functionName = sValue.substring(lastDot + 1);
                 switch (functionName) {
                     case "length()":
-                        return "jsonb_array_length(properties #> '{" + getPGPropertyArray(fName) + "}')";
+                        return "jsonb_array_length(properties #> " + propertyPath(getPGPropertyArray(fName)) + ")";
                     case "isNotNull()":
-                        return "(properties #>> '{" + getPGPropertyArray(fName) + "}' is not null)";
+                        return "(properties #>> " + propertyPath(getPGPropertyArray(fName)) + " is not null)";
                     case "isNull()":
-                        return "(properties #>> '{" + getPGPropertyArray(fName) + "}' is null)";
+                        return "(properties #>> " + propertyPath(getPGPropertyArray(fName)) + " is null)";
                     case "notExists()":
-                        return "(properties #> '{" + getPGPropertyArray(fName) + "}' is null)";
+                        return "(properties #> " + propertyPath(getPGPropertyArray(fName)) + " is null)";
                     case "exists()":
-                        return "(properties #> '{" + getPGPropertyArray(fName) + "}' is not null)";
+                        return "(properties #> " + propertyPath(getPGPropertyArray(fName)) + " is not null)";
                     default:
                         return sValue;
                 }
@@ -192,21 +298,16 @@ public class Query {
         } else if (sourceType.equals(SourceType.s_property)) {
             String sValue = (String) value;
             if (sValue.startsWith("$."))
-                return "properties #> '{" + getPGPropertyArray(sValue) + "}'";
+                return "properties #> " + propertyPath(getPGPropertyArray(sValue));
             else
                 return sValue;
         } else if (sourceType.equals(SourceType.s_field)) {
             return (String) value;
         } else if (sourceType.equals(SourceType.s_const)) {
             if (paramMap != null) {
-                if (value instanceof String) {
-                    Timestamp date = isValidDate((String) value);
-                    if (date != null)
-                        paramMap.put(uniqueName, date);
-                    else
-                        paramMap.put(uniqueName, value);
-                } else
-                    paramMap.put(uniqueName, value);
+                paramMap.put(uniqueName, toParamValue(value));
+                if (templateSlots != null)
+                    templateSlots.add(new QueryTemplate.Slot(uniqueName, conditionIndex, left, format));
 
                 return ":" + uniqueName;
             } else {
@@ -255,6 +356,7 @@ public class Query {
     }
 
     private String generateConditionString(String uniqueName, Condition condition, Map<String, Object> paramMap) throws ConditionNotAllowedException, UnknownColumnException {
+        conditionIndex++;
         String sFormat = "%s %s %s";
         String v1;
         String op;
@@ -270,7 +372,7 @@ public class Query {
 
                 // eg.: 5 in $.jsonArray   >>> v1 @> '[v2]'
             } else if (condition.getRightSource().equals(SourceType.s_property)) {
-                v1 = "properties #> '{" + getPGPropertyArray(condition.getRightValue().toString()) + "}'";
+                v1 = "properties #> " + propertyPath(getPGPropertyArray(condition.getRightValue().toString()));
                 op = "@>";
                 if (condition.getLeftValue() instanceof String) {
                     v2 = "'[\"" + condition.getLeftValue() + "\"]'";
@@ -291,14 +393,14 @@ public class Query {
                     }
                 }
                 op = "@>";
-                v2 = "(properties #> '{" + getPGPropertyArray(condition.getLeftValue().toString()) + "}')";
+                v2 = "(properties #> " + propertyPath(getPGPropertyArray(condition.getLeftValue().toString())) + ")";
 
                 // property not used in this condition
             } else {
                 sFormat = "%s %s (%s)";
-                v1 = getConditionStringValue(uniqueName + "1", condition.getLeftSource(), condition.getLeftValue(), paramMap);
+                v1 = getConditionStringValue(uniqueName + "1", condition.getLeftSource(), condition.getLeftValue(), paramMap, true, QueryTemplate.ValueFormat.raw);
                 op = condition.getOperator().toString();
-                v2 = getConditionStringValue(uniqueName + "2", condition.getRightSource(), condition.getRightValue(), paramMap);
+                v2 = getConditionStringValue(uniqueName + "2", condition.getRightSource(), condition.getRightValue(), paramMap, false, QueryTemplate.ValueFormat.raw);
             }
         }
 
@@ -314,55 +416,86 @@ public class Query {
 
             String leftValue, rightValue;
 
-            if (condition.getLeftSource().equals(SourceType.s_property))
-                leftValue = "properties #>> '{" + getPGPropertyArray((String) condition.getLeftValue()) + "}'";
-            else
+            if (condition.getLeftSource().equals(SourceType.s_property)) {
+                leftValue = "properties #>> " + propertyPath(getPGPropertyArray((String) condition.getLeftValue()));
+                addPredicate((String) condition.getLeftValue(), PropertyIndexService.USAGE_PATTERN, condition.getOperator(), "text");
+            } else
                 leftValue = "(" + condition.getLeftValue() + ")::varchar";
 
             if (condition.getRightSource().equals(SourceType.s_property))
-                rightValue = "properties #>> '{" + getPGPropertyArray((String) condition.getRightValue()) + "}'";
+                rightValue = "properties #>> " + propertyPath(getPGPropertyArray((String) condition.getRightValue()));
             else
                 rightValue = "" + condition.getRightValue();
 
 
-            v1 = getConditionStringValue(uniqueName + "l", condition.getLeftSource(), leftValue, paramMap);
+            v1 = getConditionStringValue(uniqueName + "l", condition.getLeftSource(), leftValue, paramMap, true, QueryTemplate.ValueFormat.varchar);
             op = condition.getOperator().toString();
-            v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), rightValue, paramMap);
+            v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), rightValue, paramMap, false, QueryTemplate.ValueFormat.text);
 
         } else {
             if (condition.getLeftSource().equals(SourceType.s_property)) {
+                String cast;
                 if (condition.getRightValue() instanceof Integer)
-                    v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::int";
+                    cast = "int";
                 else if (condition.getRightValue() instanceof Float)
-                    v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::float";
+                    cast = "float";
                 else if (condition.getRightValue() instanceof Boolean)
-                    v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::bool";
-                else if (isValidDate((String) condition.getRightValue()) != null) {
-                    Timestamp date = isValidDate((String) condition.getRightValue());
-                    v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::text::timestamp";
-                } else
-                    v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::text";
+                    cast = "bool";
+                else if (isValidDate((String) condition.getRightValue()) != null)
+                    cast = "text::timestamp";
+                else
+                    cast = "text";
+                v1 = "(" + getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap) + ")::" + cast;
+                addPredicate((String) condition.getLeftValue(), PropertyIndexService.USAGE_FILTER, condition.getOperator(), cast);
             } else if (condition.getLeftSource().equals(SourceType.s_function)) {
                 v1 = "(" + getField((String) condition.getLeftValue()) + ")";
             } else
-                v1 = getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap);
+                v1 = getConditionStringValue(uniqueName + "l", condition.getLeftSource(), condition.getLeftValue(), paramMap, true, QueryTemplate.ValueFormat.raw);
 
             op = condition.getOperator().toString();
 
             if (condition.getLeftSource().equals(SourceType.s_property)) {
                 if (condition.getRightValue() == null)
-                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), "null", paramMap);
+                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), "null", paramMap, false, QueryTemplate.ValueFormat.nullText);
                 else if (condition.getRightValue() instanceof String)
-                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), "\"" + condition.getRightValue() + "\"", paramMap);
+                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), "\"" + condition.getRightValue() + "\"", paramMap, false, QueryTemplate.ValueFormat.quoted);
                 else
-                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), condition.getRightValue(), paramMap);
+                    v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), condition.getRightValue(), paramMap, false, QueryTemplate.ValueFormat.raw);
             } else
-                v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), condition.getRightValue(), paramMap);
+                v2 = getConditionStringValue(uniqueName + "r", condition.getRightSource(), condition.getRightValue(), paramMap, false, QueryTemplate.ValueFormat.raw);
         }
 
         return String.format(sFormat, v1, op, v2);
     }
 
+    private void addPredicate(String field, String usage, Operator operator, String cast) {
+        // functions of properties are not indexed
+        if (field != null && field.startsWith("$.") && !field.endsWith(")"))
+            predicates.add(new QueryPredicate(field, usage, operator != null ? operator.toString() : null, cast));
+    }
+
+    public List<QueryPredicate> getPredicates() {
+        return predicates;
+    }
+
+    // Expression of a property compared with a constant of the given class item type, as written by generateConditionString
+    public String getPropertyConditionExpression(String jsonPath, String type) {
+        String property = "(" + getConditionStringValue(null, SourceType.s_property, jsonPath, null) + ")";
+        switch (type) {
+            case "numeric":
+                return property + "::int";
+            case "boolean":
+                return property + "::bool";
+            default:
+                return property + "::text";
+        }
+    }
+
+    // Expression of a property used for sorting and by the like operators
+    public String getPropertySortExpression(String jsonPath) throws UnknownColumnException {
+        return getField(jsonPath);
+    }
+
     // returns PGObjects instead of strings
     private String getField4Select(String fieldName) throws UnknownColumnException {
         if (fieldName.startsWith("$.")) {
@@ -374,19 +507,19 @@ public class Query {
 
                 switch (functionName) {
                     case "length()":
-                        resultFiled = "coalesce(jsonb_array_length(properties #> '{" + getPGPropertyArray(filedJsonPath) + "}'), 0)";
+                        resultFiled = "coalesce(jsonb_array_length(properties #> " + propertyPath(getPGPropertyArray(filedJsonPath)) + "), 0)";
                         break;
 
                     case "isNotNull()":
                     case "exists()":
                     case "isNotEmpty()":
-                        resultFiled = "properties #>> '{" + getPGPropertyArray(filedJsonPath) + "}' is not null";
+                        resultFiled = "properties #>> " + propertyPath(getPGPropertyArray(filedJsonPath)) + " is not null";
                         break;
 
                     case "isNull()":
                     case "notExists()":
                     case "isEmpty()":
-                        resultFiled = "properties #>> '{" + getPGPropertyArray(filedJsonPath) + "}' is null";
+                        resultFiled = "properties #>> " + propertyPath(getPGPropertyArray(filedJsonPath)) + " is null";
                         break;
 
                     default:
@@ -396,7 +529,7 @@ public class Query {
                 return resultFiled;
 
             } else
-                return "properties #> '{" + getPGPropertyArray(fieldName) + "}'";
+                return "properties #> " + propertyPath(getPGPropertyArray(fieldName));
 
         } else
             return fieldName;
@@ -412,19 +545,19 @@ public class Query {
 
                 switch (functionName) {
                     case "length()":
-                        resultFiled = "coalesce(jsonb_array_length(properties #> '{" + getPGPropertyArray(filedJsonPath) + "}'), 0)";
+                        resultFiled = "coalesce(jsonb_array_length(properties #> " + propertyPath(getPGPropertyArray(filedJsonPath)) + "), 0)";
                         break;
 
                     case "isNotNull()":
                     case "exists()":
                     case "isNotEmpty()":
-                        resultFiled = "properties #>> '{" + getPGPropertyArray(filedJsonPath) + "}' is not null";
+                        resultFiled = "properties #>> " + propertyPath(getPGPropertyArray(filedJsonPath)) + " is not null";
                         break;
 
                     case "isNull()":
                     case "notExists()":
                     case "isEmpty()":
-                        resultFiled = "properties #>> '{" + getPGPropertyArray(filedJsonPath) + "}' is null";
+                        resultFiled = "properties #>> " + propertyPath(getPGPropertyArray(filedJsonPath)) + " is null";
                         break;
 
                     default:
@@ -434,12 +567,35 @@ public class Query {
                 return resultFiled;
 
             } else
-                return "properties #>> '{" + getPGPropertyArray(fieldName) + "}'";
+                return "properties #>> " + propertyPath(getPGPropertyArray(fieldName));
 
         } else
             return fieldName;
     }
 
+    // Returns the path as a text[] literal, or as a parameter when the property paths are bound
+    private String propertyPath(String pgPropertyArray) {
+        String path = "{" + pgPropertyArray + "}";
+        if (bindPropertyPaths) {
+            // the name is derived from the path, so the same path always gets the same parameter
+            StringBuilder name = new StringBuilder("path_");
+            for (byte b : path.getBytes(StandardCharsets.UTF_8))
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            boundParams.put(name.toString(), path);
+            return "CAST(:" + name + " AS text[])";
+        } else
+            return "'" + path + "'";
+    }
+
+    private String jsonbValue(String json, int index) {
+        if (bindPropertyPaths) {
+            String name = PROPERTIES_PATCH + "_" + index;
+            boundParams.put(name, json);
+            return "CAST(:" + name + " AS jsonb)";
+        } else
+            return "'" + json.replace("'", "''") + "'::jsonb";
+    }
+
     private String getPGPropertyArray(String jsonPath) {
         // $.group.subgroup.item 	>>>>  group,subgroup,item
         String result = jsonPath.substring(2);
@@ -458,14 +614,26 @@ public class Query {
         return result.substring(1); // cut first comma character
     }
 
-    private java.sql.Timestamp isValidDate(String inDate) {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        dateFormat.setLenient(false);
-        try {
-            return new java.sql.Timestamp(dateFormat.parse(inDate.trim()).getTime());
-        } catch (ParseException pe) {
-            return null;
+    static Object toParamValue(Object value) {
+        if (value instanceof String) {
+            Timestamp date = isValidDate((String) value);
+            if (date != null)
+                return date;
         }
+        return value;
+    }
+
+    // Parses the beginning of the string like before, the text following the date is ignored
+    static java.sql.Timestamp isValidDate(String inDate) {
+        String date = inDate.trim();
+        // cheap check first, most of the strings are not dates and a date contains the literals of the format
+        int t = date.indexOf('T');
+        if (t < 1 || date.indexOf('Z', t) < 0)
+            return null;
+
+        // without an exception for the strings which are not dates
+        Date parsed = DATE_FORMAT.get().parse(date, new ParsePosition(0));
+        return parsed != null ? new java.sql.Timestamp(parsed.getTime()) : null;
     }
 
     public Query orderBy(Optional<String> sort) throws UnknownColumnException {
@@ -476,23 +644,93 @@ public class Query {
     }
 
     public Query orderBy(String sort) throws UnknownColumnException {
-        boolean asc = true;
-        String column = sort;
+        String column = getSortColumn(sort);
 
+        if (column.toUpperCase().startsWith("RANDOM"))
+            orderBy("RANDOM()", true);
+        else {
+            orderBy(getField(column), isSortAsc(sort));
+            addPredicate(column, PropertyIndexService.USAGE_SORT, null, "text");
+        }
+
+        return this;
+    }
+
+    private String getSortColumn(String sort) {
+        String column = sort;
         if (sort.startsWith("desc(")) {
             column = column.replace("desc(", "");
             column = column.substring(0, column.length() - 1);
-            asc = false;
         } else if (sort.startsWith("asc(")) {
             column = column.replace("asc(", "");
             column = column.substring(0, column.length() - 1);
         }
+        return column;
+    }
+
+    private boolean isSortAsc(String sort) {
+        return !sort.startsWith("desc(");
+    }
 
+    private String getSortKey(String sort) throws UnknownColumnException {
+        String column = getSortColumn(sort);
         if (column.toUpperCase().startsWith("RANDOM"))
-            orderBy("RANDOM()", true);
-        else
-            orderBy(getField(column), asc);
+            throw new IllegalArgumentException("The cursor pagination can not be used with random sorting!");
+        return "(" + convertField(getField(column)) + ")";
+    }
+
+    public Query selectTotalCount() {
+        query += ", count(*) over() as \"" + COL.TOTAL_COUNT + "\"";
+        return this;
+    }
+
+    // Adds the sort key and the data_id to the selected columns. Both are needed to build the next cursor.
+    public Query selectCursor(String sort) throws UnknownColumnException {
+        query += ", " + getSortKey(sort) + "::text as \"" + COL.CURSOR_VALUE + "\", " + COL.DATA_ID + " as \"" + COL.CURSOR_ID + "\"";
+        return this;
+    }
+
+    // Keyset condition: only rows placed after the cursor in the (sort key, data_id) order.
+    // The cursor value is bound as an untyped parameter, so Postgres casts it to the type of the sort key.
+    // Null sort keys are placed last in the ascending order and first in the descending order.
+    public Query seek(Map<String, Object> paramMap, String sort, DataCursor cursor) throws UnknownColumnException {
+        if (cursor != null) {
+            String key = getSortKey(sort);
+            String condition;
+            if (isSortAsc(sort)) {
+                if (cursor.getValue() != null)
+                    condition = "((" + key + ", " + COL.DATA_ID + ") > (:cursor_value, :cursor_id) or " + key + " is null)";
+                else
+                    condition = "(" + key + " is null and " + COL.DATA_ID + " > :cursor_id)";
+            } else {
+                if (cursor.getValue() != null)
+                    condition = "(" + key + ", " + COL.DATA_ID + ") < (:cursor_value, :cursor_id)";
+                else
+                    condition = "(" + key + " is not null or " + COL.DATA_ID + " < :cursor_id)";
+            }
+
+            if (cursor.getValue() != null)
+                paramMap.put("cursor_value", new SqlParameterValue(Types.OTHER, cursor.getValue()));
+            paramMap.put("cursor_id", cursor.getId());
+
+            // the seek condition must not be bound by an 'or' from the rules
+            if (whereIndex >= 0)
+                query = query.substring(0, whereIndex) + "(" + query.substring(whereIndex) + ") AND " + condition;
+            else {
+                whereIndex = query.length() + " WHERE ".length();
+                query += " WHERE " + condition;
+            }
+        }
+        return this;
+    }
 
+    public Query orderByCursor(String sort) throws UnknownColumnException {
+        String key = getSortKey(sort);
+        String direction = isSortAsc(sort) ? "" : " desc";
+        addPredicate(getSortColumn(sort), PropertyIndexService.USAGE_SORT, null, "text");
+        query += " ORDER BY " + key + direction;
+        if (!key.equals("(" + COL.DATA_ID + ")"))
+            query += ", " + COL.DATA_ID + direction;
         return this;
     }
 
@@ -513,6 +751,8 @@ public class Query {
                 return COL.TAG_ID;
             case "owner":
                 return COL.RESERVED_BY;
+            case "reservedUntil":
+                return COL.RESERVED_UNTIL;
             case "createdBy":
                 return COL.CREATED_BY;
             case "createdAt":
@@ -526,6 +766,48 @@ public class Query {
         }
     }
 
+    // Sets the end of the reservation lease, counted from the database clock
+    public Query setLease(Map<String, Object> paramMap, int leaseSeconds) {
+        if (query.contains(" SET "))
+            query += ", ";
+        else
+            query += " SET ";
+        query += COL.RESERVED_UNTIL + " = localtimestamp + :lease_seconds * interval '1 second'";
+        paramMap.put("lease_seconds", leaseSeconds);
+        return this;
+    }
+
+    // Locks the selected rows, rows already locked by another transaction are left out
+    public Query forUpdateSkipLocked() {
+        query += " FOR UPDATE SKIP LOCKED";
+        return this;
+    }
+
+    // Restricts the query to the rows after the given data_id, the rules are kept together by parentheses
+    public Query afterDataId(Map<String, Object> paramMap, long dataId) {
+        if (whereIndex >= 0)
+            query = query.substring(0, whereIndex) + "(" + query.substring(whereIndex) + ") AND " + COL.DATA_ID + " > :after_data_id";
+        else {
+            whereIndex = query.length() + " WHERE ".length();
+            query += " WHERE " + COL.DATA_ID + " > :after_data_id";
+        }
+        paramMap.put("after_data_id", dataId);
+        return this;
+    }
+
+    // Locks the selected rows
+    public Query forUpdate() {
+        query += " FOR UPDATE";
+        return this;
+    }
+
+    // Restricts the query to the rows selected by the given subquery
+    public Query whereDataIdIn(Query subQuery) {
+        query += " WHERE " + COL.DATA_ID + " IN (" + subQuery.query + ")";
+        boundParams.putAll(subQuery.boundParams);
+        return this;
+    }
+
     public Query limit(Map<String, Object> paramMap, int limit) {
         query += " LIMIT :limit";
         paramMap.put("limit", limit);
@@ -548,6 +830,8 @@ public class Query {
 
     public String toString(Logger logger, Map<String, Object> paramMap) {
         if (paramMap != null) {
+            if (!boundParams.isEmpty())
+                paramMap.putAll(boundParams);
             logger.debug("paramMap: " + convertWithStream(paramMap));
         }
         logger.debug(query);
@@ -581,12 +865,30 @@ public class Query {
         String result = "";
         for (CustomColumnDto col : columns)
             if (col.getTitle() != null)
-                result += ", " + getField4Select(col.getField()) + " as \"" + col.getTitle() + "\"";
+                result += ", " + getTypedField4Select(col.getField()) + " as \"" + col.getTitle() + "\"";
             else
-                result += ", " + getField4Select(col.getField());
+                result += ", " + getTypedField4Select(col.getField());
         return result.substring(2);
     }
 
+    // Properties declared by the class are read as numeric, boolean or text values, values of another json type
+    // are returned as null; other properties stay jsonb
+    private String getTypedField4Select(String fieldName) throws UnknownColumnException {
+        String type = fieldName.startsWith("$.") && !fieldName.endsWith("()") ? propertyTypes.get(fieldName) : null;
+        if (type == null)
+            return getField4Select(fieldName);
+
+        String path = propertyPath(getPGPropertyArray(fieldName));
+        switch (type) {
+            case "numeric":
+                return "CASE WHEN jsonb_typeof(properties #> " + path + ") = 'number' THEN (properties #>> " + path + ")::numeric END";
+            case "boolean":
+                return "CASE WHEN jsonb_typeof(properties #> " + path + ") = 'boolean' THEN (properties #>> " + path + ")::boolean END";
+            default:
+                return "properties #>> " + path;
+        }
+    }
+
     private String columnsToSetString(Map<String, Object> paramMap) {
         String result = "";
         for (Map.Entry<String, Object> col : paramMap.entrySet())
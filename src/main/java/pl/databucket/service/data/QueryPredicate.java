@@ -0,0 +1,25 @@
+package pl.databucket.service.data;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Normalized property condition or sort of a generated query: the property path, the index usage that could serve
+ * it, the operator (null for sorting) and the cast of the property.
+ */
+@Getter
+@EqualsAndHashCode
+public class QueryPredicate {
+
+    private final String path;
+    private final String usage;
+    private final String operator;
+    private final String cast;
+
+    public QueryPredicate(String path, String usage, String operator, String cast) {
+        this.path = path;
+        this.usage = usage;
+        this.operator = operator;
+        this.cast = cast;
+    }
+}
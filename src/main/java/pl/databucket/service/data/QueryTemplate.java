@@ -0,0 +1,133 @@
+package pl.databucket.service.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rules part of a query compiled once for a given shape of the QueryRule (operators, sources, fields and
+ * types of constants). The constants are bound as parameters, so the same template serves every QueryRule
+ * with the same shape.
+ */
+public class QueryTemplate {
+
+    // How the constant of a condition is turned into the parameter value
+    public enum ValueFormat {
+        raw,
+        text,       // "" + value
+        quoted,     // "\"" + value + "\""
+        varchar,    // "(" + value + ")::varchar"
+        nullText;   // "null"
+
+        Object apply(Object value) {
+            switch (this) {
+                case text: return "" + value;
+                case quoted: return "\"" + value + "\"";
+                case varchar: return "(" + value + ")::varchar";
+                case nullText: return "null";
+                default: return value;
+            }
+        }
+    }
+
+    public static class Slot {
+        private final String paramName;
+        private final int conditionIndex;
+        private final boolean left;
+        private final ValueFormat format;
+
+        public Slot(String paramName, int conditionIndex, boolean left, ValueFormat format) {
+            this.paramName = paramName;
+            this.conditionIndex = conditionIndex;
+            this.left = left;
+            this.format = format;
+        }
+    }
+
+    private final String rules;
+    private final List<Slot> slots;
+    // bound property paths, they do not depend on the constants of the rule
+    private final Map<String, Object> boundParams;
+    private final List<QueryPredicate> predicates;
+
+    public QueryTemplate(String rules, List<Slot> slots, Map<String, Object> boundParams, List<QueryPredicate> predicates) {
+        this.rules = rules;
+        this.slots = Collections.unmodifiableList(new ArrayList<>(slots));
+        this.boundParams = Collections.unmodifiableMap(new HashMap<>(boundParams));
+        this.predicates = Collections.unmodifiableList(new ArrayList<>(predicates));
+    }
+
+    public List<QueryPredicate> getPredicates() {
+        return predicates;
+    }
+
+    public Map<String, Object> getBoundParams() {
+        return boundParams;
+    }
+
+    // Puts the constants of the given rule into the paramMap and returns the rules string
+    public String bind(QueryRule queryRule, Map<String, Object> paramMap) {
+        if (!slots.isEmpty()) {
+            List<Condition> conditions = getConditions(queryRule);
+            for (Slot slot : slots) {
+                Condition condition = conditions.get(slot.conditionIndex);
+                Object value = slot.left ? condition.getLeftValue() : condition.getRightValue();
+                paramMap.put(slot.paramName, Query.toParamValue(slot.format.apply(value)));
+            }
+        }
+        return rules;
+    }
+
+    // Conditions in the order they are visited while the rules string is generated
+    public static List<Condition> getConditions(QueryRule queryRule) {
+        List<Condition> conditions = new ArrayList<>();
+        collectConditions(queryRule, conditions);
+        return conditions;
+    }
+
+    private static void collectConditions(QueryRule queryRule, List<Condition> conditions) {
+        conditions.addAll(queryRule.getConditions());
+        for (QueryRule subRule : queryRule.getQueryRules())
+            collectConditions(subRule, conditions);
+    }
+
+    // Shape of the rule: everything that changes the generated SQL, but not the values bound as parameters
+    public static String getShape(QueryRule queryRule) {
+        StringBuilder shape = new StringBuilder();
+        appendShape(queryRule, shape);
+        return shape.toString();
+    }
+
+    private static void appendShape(QueryRule queryRule, StringBuilder shape) {
+        shape.append(queryRule.getOperator().name()).append('(');
+        for (Condition condition : queryRule.getConditions()) {
+            // constants compared with a json array are written into the SQL
+            boolean inlined = (condition.getOperator() == Operator.in || condition.getOperator() == Operator.notIn)
+                    && (condition.getLeftSource() == SourceType.s_property || condition.getRightSource() == SourceType.s_property);
+
+            appendValueShape(condition.getLeftSource(), condition.getLeftValue(), inlined, shape);
+            shape.append(' ').append(condition.getOperator().name()).append(' ');
+            appendValueShape(condition.getRightSource(), condition.getRightValue(), inlined, shape);
+            shape.append(';');
+        }
+        for (QueryRule subRule : queryRule.getQueryRules())
+            appendShape(subRule, shape);
+        shape.append(')');
+    }
+
+    private static void appendValueShape(SourceType source, Object value, boolean inlined, StringBuilder shape) {
+        shape.append(source).append(':');
+        if (source != SourceType.s_const || inlined) {
+            // the length prefix keeps the shape unambiguous whatever the value contains
+            String text = String.valueOf(value);
+            shape.append(text.length()).append('#').append(text);
+        } else if (value == null)
+            shape.append("null");
+        else if (value instanceof String)
+            shape.append(Query.isValidDate((String) value) != null ? "date" : "string");
+        else
+            shape.append(value.getClass().getSimpleName());
+    }
+}
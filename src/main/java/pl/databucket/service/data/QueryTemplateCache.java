@@ -0,0 +1,55 @@
+package pl.databucket.service.data;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.databucket.dto.QueryTemplateCacheDto;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded (LRU) cache of compiled query templates. The key is the shape of the QueryRule.
+ */
+@Component
+public class QueryTemplateCache {
+
+    private final int maxSize;
+    private final Map<String, QueryTemplate> templates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public QueryTemplateCache(@Value("${databucket.query-cache.size:1000}") int maxSize) {
+        this.maxSize = maxSize;
+        this.templates = Collections.synchronizedMap(new LinkedHashMap<String, QueryTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryTemplate> eldest) {
+                return size() > QueryTemplateCache.this.maxSize;
+            }
+        });
+    }
+
+    public QueryTemplate get(String shape) {
+        QueryTemplate template = templates.get(shape);
+        if (template != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return template;
+    }
+
+    public void put(String shape, QueryTemplate template) {
+        if (maxSize > 0)
+            templates.put(shape, template);
+    }
+
+    public QueryTemplateCacheDto getStatistics() {
+        QueryTemplateCacheDto dto = new QueryTemplateCacheDto();
+        dto.setSize(templates.size());
+        dto.setMaxSize(maxSize);
+        dto.setHits(hits.get());
+        dto.setMisses(misses.get());
+        return dto;
+    }
+}
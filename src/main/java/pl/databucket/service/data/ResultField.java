@@ -2,5 +2,6 @@ package pl.databucket.service.data;
 
 public enum ResultField {
 	TOTAL,
-	DATA
+	DATA,
+	NEXT
 }
@@ -0,0 +1,74 @@
+package pl.databucket.service.data;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.databucket.dto.StatementStatisticsDto;
+import pl.databucket.dto.StatementUsageDto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts executions of the generated SQL statements. The executions of a statement text after its first
+ * prepareThreshold ones are counted as executionsBeyondThreshold. It is an estimate of how well the statement text
+ * is reused, not a measurement of the server-side prepared statements: the driver counts the executions per
+ * connection and per prepared statement cache, this counter counts them for the whole application.
+ */
+@Component
+public class StatementStatistics {
+
+    private static final int TOP_STATEMENTS = 20;
+
+    private final int maxSize;
+    private final int prepareThreshold;
+    private final Map<String, AtomicLong> statements;
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong executionsBeyondThreshold = new AtomicLong();
+
+    public StatementStatistics(@Value("${databucket.statement-statistics.size:1000}") int maxSize,
+                               @Value("${spring.datasource.hikari.data-source-properties.prepareThreshold:5}") int prepareThreshold) {
+        this.maxSize = maxSize;
+        this.prepareThreshold = prepareThreshold;
+        this.statements = Collections.synchronizedMap(new LinkedHashMap<String, AtomicLong>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AtomicLong> eldest) {
+                return size() > StatementStatistics.this.maxSize;
+            }
+        });
+    }
+
+    public void record(String sql) {
+        executions.incrementAndGet();
+        if (maxSize <= 0)
+            return;
+
+        long count = statements.computeIfAbsent(sql, key -> new AtomicLong()).incrementAndGet();
+        if (count > prepareThreshold)
+            executionsBeyondThreshold.incrementAndGet();
+    }
+
+    public StatementStatisticsDto getStatistics() {
+        List<StatementUsageDto> usages = new ArrayList<>();
+        synchronized (statements) {
+            for (Map.Entry<String, AtomicLong> entry : statements.entrySet()) {
+                StatementUsageDto usage = new StatementUsageDto();
+                usage.setSql(entry.getKey());
+                usage.setExecutions(entry.getValue().get());
+                usages.add(usage);
+            }
+        }
+        usages.sort((a, b) -> Long.compare(b.getExecutions(), a.getExecutions()));
+
+        StatementStatisticsDto dto = new StatementStatisticsDto();
+        dto.setPrepareThreshold(prepareThreshold);
+        dto.setExecutions(executions.get());
+        dto.setExecutionsBeyondThreshold(executionsBeyondThreshold.get());
+        dto.setDistinctStatements(usages.size());
+        dto.setTopStatements(usages.subList(0, Math.min(TOP_STATEMENTS, usages.size())));
+        return dto;
+    }
+}
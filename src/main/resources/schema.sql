@@ -1,74 +1,117 @@
 
-CREATE OR REPLACE FUNCTION jsonb_merge(IN orig jsonb, IN delta jsonb) RETURNS jsonb AS '
-select
-	jsonb_object_agg(
-		coalesce(keyOrig, keyDelta),
-		case
-			when valOrig isnull then valDelta
-			when valDelta isnull then valOrig
-			when (jsonb_typeof(valOrig) <> ''object'' or jsonb_typeof(valDelta) <> ''object'') then valDelta
-			else jsonb_merge(valOrig, valDelta)
-		end
-	)
-from jsonb_each(orig) e1(keyOrig, valOrig)
-full join jsonb_each(delta) e2(keyDelta, valDelta) on keyOrig = keyDelta;
-' LANGUAGE sql;
+-- jsonb_set creating the missing or non-object intermediate nodes of the path as objects. A NULL value only makes
+-- sure there is an object at the path.
+CREATE OR REPLACE FUNCTION jsonb_set_path(IN doc jsonb, IN path text[], IN val jsonb) RETURNS jsonb AS '
+DECLARE
+    depth integer := coalesce(array_length(path, 1), 0);
+BEGIN
+    FOR i IN 1 .. depth LOOP
+        IF (i < depth OR val IS NULL) AND jsonb_typeof(doc #> path[1:i]) IS DISTINCT FROM ''object'' THEN
+            doc := jsonb_set(doc, path[1:i], ''{}''::jsonb);
+        END IF;
+    END LOOP;
+
+    IF val IS NOT NULL THEN
+        doc := jsonb_set(doc, path, val);
+    END IF;
+
+    RETURN doc;
+END;
+' LANGUAGE plpgsql IMMUTABLE;
 
 
+-- Removes the history of a deleted row. Chunked deletes remove the history of the whole chunk by one statement
+-- before the data and mark the transaction with databucket.history_deleted, then the trigger does nothing.
 CREATE
 OR REPLACE FUNCTION before_delete() RETURNS trigger AS '
-DECLARE
-    this_query text;
 BEGIN
-    EXECUTE format(''DELETE FROM "%s-h" WHERE data_id = %s'', TG_TABLE_NAME, OLD.data_id);
+    IF coalesce(current_setting(''databucket.history_deleted'', true), '''') <> ''on'' THEN
+        EXECUTE format(''DELETE FROM %I WHERE data_id = $1'', TG_TABLE_NAME || ''-h'') USING OLD.data_id;
+    END IF;
     RETURN OLD;
 END;
 ' LANGUAGE plpgsql;
 
 
+-- Changes between two documents as an array of operations: {"p": path, "v": value} sets the value at the path,
+-- {"p": path} removes the path. Objects present in both documents are compared recursively.
+CREATE OR REPLACE FUNCTION jsonb_diff(IN orig jsonb, IN delta jsonb, IN path text[] DEFAULT '{}') RETURNS jsonb AS '
+select coalesce(jsonb_agg(op), ''[]''::jsonb)
+from (
+	select
+		case
+			when valDelta isnull then jsonb_build_object(''p'', to_jsonb(path || keyOrig))
+			else jsonb_build_object(''p'', to_jsonb(path || keyDelta), ''v'', valDelta)
+		end as op
+	from jsonb_each(orig) e1(keyOrig, valOrig)
+	full join jsonb_each(delta) e2(keyDelta, valDelta) on keyOrig = keyDelta
+	where valOrig isnull or valDelta isnull
+		or (valOrig <> valDelta and (jsonb_typeof(valOrig) <> ''object'' or jsonb_typeof(valDelta) <> ''object''))
+	union all
+	select jsonb_array_elements(jsonb_diff(valOrig, valDelta, path || keyOrig))
+	from jsonb_each(orig) e1(keyOrig, valOrig)
+	join jsonb_each(delta) e2(keyDelta, valDelta) on keyOrig = keyDelta
+	where valOrig <> valDelta and jsonb_typeof(valOrig) = ''object'' and jsonb_typeof(valDelta) = ''object''
+) ops;
+' LANGUAGE sql;
+
+
+-- The inserted documents are stored whole, they are the base of the later changes
 CREATE
-OR REPLACE FUNCTION after_insert() RETURNS trigger AS '
-DECLARE
-    this_query text;
+OR REPLACE FUNCTION after_insert_statement() RETURNS trigger AS '
 BEGIN
-    EXECUTE format(''INSERT INTO "%s-h" (data_id, tag_id, reserved, properties, modified_by) VALUES (%s, %L::integer, %L::boolean, %L, %L)'', TG_TABLE_NAME, NEW.data_id, NEW.tag_id, NEW.reserved, NEW.properties, NEW.created_by);
+    EXECUTE format(''INSERT INTO "%s-h" (data_id, tag_id, reserved, properties, properties_version, modified_by) SELECT data_id, tag_id, reserved, properties, 0, created_by FROM new_rows'', TG_TABLE_NAME);
     RETURN NULL;
 END;
 ' LANGUAGE plpgsql;
 
 
+-- A changed document is stored as a diff against the previous version, every TG_ARGV[0] versions (and when there is
+-- no previous version in the history) it is stored whole. The first version of a month is stored whole as well, so
+-- the versions of a month never depend on an older monthly partition dropped by the retention. TG_ARGV[1], when
+-- given, is the time the history was turned on; the versions stored before it are followed by changes missing from
+-- the history, so the first version after it is stored whole too.
 CREATE
-OR REPLACE FUNCTION after_update() RETURNS trigger AS '
-DECLARE
-    this_query text;
-	insert_changes boolean;
-	tagId integer;
-	reserved boolean;
-	properties text;
+OR REPLACE FUNCTION after_update_statement() RETURNS trigger AS '
 BEGIN
-	insert_changes := false;
-    tagId := null;
-	IF ((OLD.tag_id is null) != (NEW.tag_id is null)) OR (OLD.tag_id != NEW.tag_id)  THEN
-		tagId := NEW.tag_id;
-        insert_changes := true;
-    END IF;
-
-    reserved = null;
-    IF OLD.reserved != NEW.reserved THEN
-		reserved := NEW.reserved;
-        insert_changes := true;
-    END IF;
-
-    properties := null;
-    IF (OLD.properties != NEW.properties) THEN
-		properties := NEW.properties;
-		insert_changes := true;
-    END IF;
-
-    IF insert_changes = true THEN
-		EXECUTE format(''INSERT INTO "%s-h" (data_id, tag_id, reserved, properties, modified_by) VALUES (%s, %L::integer, %L::boolean, %L::jsonb, %L)'', TG_TABLE_NAME, NEW.data_id, tagId, reserved, properties, NEW.modified_by);
-    END IF;
-
+    EXECUTE format(''INSERT INTO "%1$s-h" (data_id, tag_id, reserved, properties, properties_diff, properties_version, modified_by)''
+        '' SELECT n.data_id,''
+        '' CASE WHEN o.tag_id IS DISTINCT FROM n.tag_id THEN n.tag_id END,''
+        '' CASE WHEN o.reserved != n.reserved THEN n.reserved END,''
+        '' CASE WHEN o.properties != n.properties AND v.diff IS NOT TRUE THEN n.properties END,''
+        '' CASE WHEN o.properties != n.properties AND v.diff THEN jsonb_diff(o.properties, n.properties) END,''
+        '' CASE WHEN o.properties != n.properties THEN coalesce(v.version + 1, 0) END,''
+        '' n.modified_by''
+        '' FROM new_rows n JOIN old_rows o ON o.data_id = n.data_id''
+        '' LEFT JOIN LATERAL (SELECT h.properties_version AS version,''
+        '' mod(h.properties_version + 1, %2$s) != 0 AND h.modified_at >= greatest(date_trunc(''''month'''', localtimestamp), %3$L::timestamp) AS diff FROM "%1$s-h" h''
+        '' WHERE h.data_id = n.data_id AND h.properties_version IS NOT NULL ORDER BY h.modified_at DESC, h.id DESC LIMIT 1) v ON true''
+        '' WHERE o.tag_id IS DISTINCT FROM n.tag_id OR o.reserved != n.reserved OR o.properties != n.properties'', TG_TABLE_NAME, TG_ARGV[0]::integer, TG_ARGV[1]);
     RETURN NULL;
 END;
 ' LANGUAGE plpgsql;
+
+
+-- Long-running data operations executed in the background. The checkpoint is the last processed data_id (or the
+-- number of processed items), so a job interrupted by a restart resumes from it.
+CREATE TABLE IF NOT EXISTS jobs (
+    job_id bigserial PRIMARY KEY,
+    job_type varchar(20) NOT NULL,
+    status varchar(20) NOT NULL,
+    project_id integer NOT NULL,
+    bucket_id bigint NOT NULL,
+    bucket_name varchar(100) NOT NULL,
+    request jsonb NOT NULL,
+    checkpoint bigint NOT NULL DEFAULT 0,
+    processed bigint NOT NULL DEFAULT 0,
+    cancel_requested boolean NOT NULL DEFAULT false,
+    claim_token varchar(36),
+    error text,
+    created_by varchar(50) NOT NULL,
+    created_at timestamp without time zone NOT NULL DEFAULT localtimestamp,
+    started_at timestamp without time zone,
+    finished_at timestamp without time zone,
+    updated_at timestamp without time zone NOT NULL DEFAULT localtimestamp
+);
+
+CREATE INDEX IF NOT EXISTS jobs_status ON jobs (status, updated_at);
@@ -0,0 +1,102 @@
+package pl.databucket
+
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.test.context.ActiveProfiles
+import pl.databucket.configuration.Json
+import pl.databucket.dto.BucketDto
+import pl.databucket.dto.DataCreateDto
+import pl.databucket.dto.RawJson
+import pl.databucket.repository.UserRepository
+import pl.databucket.security.CustomUserDetails
+import pl.databucket.security.PrincipalCache
+import pl.databucket.service.BucketService
+import pl.databucket.service.data.BucketDescriptor
+import pl.databucket.service.data.DataService
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Base of the specs running against the database (see application-it.yaml). Every feature runs as the super user
+ * in a project of its own, so it does not see the buckets, groups and views created by the other features.
+ */
+@SpringBootTest
+@ActiveProfiles('it')
+abstract class IntegrationSpec extends Specification {
+
+  private static final AtomicInteger PROJECT_IDS = new AtomicInteger(1000)
+  private static final AtomicInteger NAMES = new AtomicInteger()
+
+  @Autowired
+  BucketService bucketService
+
+  @Autowired
+  DataService dataService
+
+  @Autowired
+  UserRepository userRepository
+
+  @Autowired
+  JdbcTemplate jdbcTemplate
+
+  @Autowired
+  PrincipalCache principalCache
+
+  Integer projectId
+
+  def setup() {
+    projectId = PROJECT_IDS.incrementAndGet()
+    authenticate()
+  }
+
+  def cleanup() {
+    SecurityContextHolder.clearContext()
+  }
+
+  // The authentication is kept per thread, the threads started by a feature have to call it as well
+  void authenticate() {
+    def userDetails = new CustomUserDetails('super', '', [], true, true)
+    userDetails.projectId = projectId
+    SecurityContextHolder.context.authentication = new UsernamePasswordAuthenticationToken(userDetails, '', [])
+  }
+
+  static String uniqueName(String prefix) {
+    return prefix + NAMES.incrementAndGet()
+  }
+
+  // The user passed to the data service
+  def getUser() {
+    return principalCache.getPrincipal('super', 'integration')
+  }
+
+  // The bucket passed to the data service
+  def createBucket(boolean history = false) {
+    def bucketDto = new BucketDto()
+    bucketDto.name = uniqueName('bucket-')
+    bucketDto.history = history
+    return new BucketDescriptor(bucketService.createBucket(bucketDto))
+  }
+
+  List<Long> createData(bucket, List<Map<String, Object>> properties) {
+    def dataCreateDtoList = properties.collect { item ->
+      def dataCreateDto = new DataCreateDto()
+      dataCreateDto.properties = rawJson(item)
+      return dataCreateDto
+    }
+    return dataService.createData(user, bucket, dataCreateDtoList)*.id
+  }
+
+  // Properties of a request, as they are read from the request body
+  static RawJson rawJson(Map<String, Object> properties) {
+    return new RawJson(Json.MAPPER.writeValueAsString(properties))
+  }
+
+  // The properties of the returned data, parsed when they are passed through as raw JSON
+  Map<String, Object> propertiesOf(data) {
+    return data.properties instanceof RawJson ? Json.MAPPER.readValue(data.properties.json, Json.MAP_TYPE) : data.properties
+  }
+}
@@ -0,0 +1,71 @@
+package pl.databucket.dto
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import pl.databucket.configuration.Json
+import spock.lang.Requires
+import spock.lang.Specification
+
+/**
+ * Timing of the import request from the body to the jsonb parameter values: the properties read as a Map and
+ * serialized again by a new ObjectMapper (as before RawJson), against the properties copied as RawJson.
+ * It is not a part of the build, it runs only when the BENCHMARK environment variable is set:
+ * <pre>BENCHMARK=1 ./gradlew test --tests pl.databucket.dto.RawJsonBenchmarkSpec -i</pre>
+ * and prints the median time of a request per document count.
+ */
+@Requires({ env.BENCHMARK })
+class RawJsonBenchmarkSpec extends Specification {
+
+  static final int WARMUP = 20
+  static final int MEASURED = 30
+
+  def "should bind the properties of the imported documents"() {
+    given:
+    def body = Json.MAPPER.writeValueAsString((1..documents).collect { [properties: document(it)] })
+    def mapType = Json.MAPPER.typeFactory.constructCollectionType(List, Map)
+    def rawType = Json.MAPPER.typeFactory.constructCollectionType(List, DataCreateDto)
+
+    def mapPath = {
+      List<Map> items = Json.MAPPER.readValue(body, mapType)
+      items.collect { new ObjectMapper().writeValueAsString(it.properties) }
+    }
+    def rawPath = {
+      List<DataCreateDto> items = Json.MAPPER.readValue(body, rawType)
+      items.collect { it.properties.json }
+    }
+
+    when:
+    def mapMillis = median(mapPath)
+    def rawMillis = median(rawPath)
+    println String.format('%6d documents: Map %8.2f ms, RawJson %8.2f ms', documents, mapMillis, rawMillis)
+
+    then:
+    rawPath().collect { Json.MAPPER.readTree(it) } == mapPath().collect { Json.MAPPER.readTree(it) }
+
+    where:
+    documents << [100, 1_000, 10_000]
+  }
+
+  // A document of about 1 kB with nested objects and arrays
+  private static Map<String, Object> document(int i) {
+    return [
+        id      : i,
+        name    : 'document ' + i,
+        active  : i % 2 == 0,
+        price   : i * 1.25,
+        tags    : (1..10).collect { 'tag-' + it },
+        address : [street: 'Street ' + i, city: 'City', zip: String.format('%05d', i), geo: [lat: 52.1 + i / 1000, lon: 21.0]],
+        history : (1..5).collect { [version: it, changedBy: 'user-' + it, note: null] },
+        settings: [a: [b: [c: [d: i]]], flags: [true, false, null]]
+    ]
+  }
+
+  private static double median(Closure path) {
+    WARMUP.times { path() }
+    def times = (1..MEASURED).collect {
+      long start = System.nanoTime()
+      path()
+      return (System.nanoTime() - start) / 1_000_000d
+    }.sort()
+    return times[MEASURED.intdiv(2)]
+  }
+}
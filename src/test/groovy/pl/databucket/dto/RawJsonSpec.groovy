@@ -0,0 +1,64 @@
+package pl.databucket.dto
+
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.databind.exc.MismatchedInputException
+import pl.databucket.configuration.Json
+import spock.lang.Specification
+
+class RawJsonSpec extends Specification {
+
+  def "should copy the json object"() {
+    when:
+    def rawJson = Json.MAPPER.readValue('{"a": 1, "b": {"c": [true, null, "text"]}}', RawJson)
+
+    then:
+    Json.MAPPER.readTree(rawJson.json) == Json.MAPPER.readTree('{"a": 1, "b": {"c": [true, null, "text"]}}')
+  }
+
+  def "should write the json as it is"() {
+    given:
+    def dto = new DataModifyDto()
+    dto.properties = new RawJson('{"a":1}')
+
+    expect:
+    Json.MAPPER.readTree(Json.MAPPER.writeValueAsString(dto)).get('properties') == Json.MAPPER.readTree('{"a":1}')
+  }
+
+  def "should reject the json which is not an object"() {
+    when:
+    Json.MAPPER.readValue(json, RawJson)
+
+    then:
+    thrown(MismatchedInputException)
+
+    where:
+    json << ['[1, 2]', '"text"', '1', 'true']
+  }
+
+  def "should reject the properties which are not an object"() {
+    when:
+    Json.MAPPER.readValue('{"properties": ' + properties + '}', DataModifyDto)
+
+    then:
+    thrown(MismatchedInputException)
+
+    where:
+    properties << ['[{"a": 1}]', '"{}"', '1', 'false']
+  }
+
+  def "should reject the malformed json object"() {
+    when:
+    Json.MAPPER.readValue('{"properties": {"a": }}', DataModifyDto)
+
+    then:
+    thrown(JsonParseException)
+  }
+
+  def "should leave the null properties empty"() {
+    when:
+    def dto = Json.MAPPER.readValue('{"properties": null}', DataModifyDto)
+
+    then:
+    dto.properties == null
+  }
+}
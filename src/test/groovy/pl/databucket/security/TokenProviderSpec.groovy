@@ -0,0 +1,115 @@
+package pl.databucket.security
+
+import io.jsonwebtoken.ExpiredJwtException
+import io.jsonwebtoken.Jwts
+import io.jsonwebtoken.SignatureAlgorithm
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+class TokenProviderSpec extends Specification {
+
+  static final String SIGNING_KEY = 'tokenprovidersecret'
+
+  def tokenProvider = new TokenProvider()
+
+  def setup() {
+    ReflectionTestUtils.setField(tokenProvider, 'singingKey', SIGNING_KEY)
+    ReflectionTestUtils.setField(tokenProvider, 'expireHours', 1L)
+    ReflectionTestUtils.setField(tokenProvider, 'verifiedCacheSize', 2)
+  }
+
+  def "should return the cached claims when the token is verified again"() {
+    given:
+    def token = createToken('user', 60_000)
+
+    when:
+    def first = tokenProvider.verifyToken(token)
+    def second = tokenProvider.verifyToken(token)
+
+    then:
+    first.subject == 'user'
+    second.is(first)
+    verifiedTokens().containsKey(token)
+  }
+
+  def "should not parse the token found in the cache"() {
+    given: 'claims cached for a string the parser would reject'
+    def claims = Jwts.claims().setSubject('user').setExpiration(new Date(System.currentTimeMillis() + 60_000))
+    verifiedTokens().put('not-a-token', claims)
+
+    expect:
+    tokenProvider.verifyToken('not-a-token').is(claims)
+  }
+
+  def "should reject the expired token even though its claims are cached"() {
+    given: 'the claims cached while the token was still valid'
+    def token = createToken('user', -1_000)
+    def claims = Jwts.claims().setSubject('user').setExpiration(new Date(System.currentTimeMillis() - 1_000))
+    verifiedTokens().put(token, claims)
+
+    when:
+    tokenProvider.verifyToken(token)
+
+    then:
+    thrown(ExpiredJwtException)
+    !verifiedTokens().containsKey(token)
+  }
+
+  def "should reject the token expiring after it was cached"() {
+    given:
+    def token = createToken('user', 2_000)
+    tokenProvider.verifyToken(token)
+
+    when:
+    sleep(3_000)
+    tokenProvider.verifyToken(token)
+
+    then:
+    thrown(ExpiredJwtException)
+    !verifiedTokens().containsKey(token)
+  }
+
+  def "should not validate the expired claims"() {
+    given:
+    def userDetails = new CustomUserDetails('user', '', [], true, false)
+    def claims = Jwts.claims().setSubject('user').setExpiration(new Date(System.currentTimeMillis() + offset))
+
+    expect:
+    tokenProvider.validateToken(claims, userDetails) == valid
+
+    where:
+    offset  || valid
+    60_000  || true
+    -1_000  || false
+  }
+
+  def "should keep the recently used tokens only"() {
+    given:
+    def first = createToken('first', 60_000)
+    def second = createToken('second', 60_000)
+    def third = createToken('third', 60_000)
+    tokenProvider.verifyToken(first)
+    tokenProvider.verifyToken(second)
+    tokenProvider.verifyToken(first)
+
+    when:
+    tokenProvider.verifyToken(third)
+
+    then:
+    verifiedTokens().keySet() == [first, third] as Set
+  }
+
+  private static String createToken(String subject, long expiresInMillis) {
+    return Jwts.builder()
+        .setSubject(subject)
+        .setId(UUID.randomUUID().toString())
+        .signWith(SignatureAlgorithm.HS256, SIGNING_KEY)
+        .setIssuedAt(new Date())
+        .setExpiration(new Date(System.currentTimeMillis() + expiresInMillis))
+        .compact()
+  }
+
+  private Map verifiedTokens() {
+    return ReflectionTestUtils.getField(tokenProvider, 'verifiedTokens') as Map
+  }
+}
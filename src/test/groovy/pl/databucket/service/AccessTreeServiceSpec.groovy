@@ -0,0 +1,199 @@
+package pl.databucket.service
+
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.test.util.ReflectionTestUtils
+import pl.databucket.IntegrationSpec
+import pl.databucket.configuration.Constants
+import pl.databucket.entity.Bucket
+import pl.databucket.entity.Group
+import pl.databucket.entity.Team
+import pl.databucket.entity.User
+import pl.databucket.entity.View
+import pl.databucket.repository.BucketRepository
+import pl.databucket.repository.GroupRepository
+import pl.databucket.repository.RoleRepository
+import pl.databucket.repository.TeamRepository
+import pl.databucket.repository.ViewRepository
+
+import javax.sql.DataSource
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.Connection
+import java.sql.SQLException
+import java.util.concurrent.atomic.AtomicInteger
+
+class AccessTreeServiceSpec extends IntegrationSpec {
+
+  // Every way an item can be assigned: directly to the user or not, by no role, a role held by the user or another
+  // role, and by no team, a team shared with the user or another team
+  static final List<Map<String, Object>> CASES = [[true, false], [null, Constants.ROLE_MEMBER, Constants.ROLE_ADMIN], ['none', 'shared', 'other']]
+      .combinations().collect { [direct: it[0], role: it[1], teams: it[2]] }
+
+  @Autowired
+  AccessTreeService accessTreeService
+
+  @Autowired
+  BucketRepository bucketRepository
+
+  @Autowired
+  GroupRepository groupRepository
+
+  @Autowired
+  ViewRepository viewRepository
+
+  @Autowired
+  TeamRepository teamRepository
+
+  @Autowired
+  RoleRepository roleRepository
+
+  @Autowired
+  DataSource dataSource
+
+  Map<String, Team> teams
+  User member
+
+  def "should give access to the items by the same rule as the entity filters did"() {
+    given:
+    createMember()
+    def items = CASES.collectEntries { [(createItem(type, it)): it] }
+
+    when:
+    def accessible = getAccessTree(accessTreeService, type)*.id
+
+    then:
+    accessible == items.findAll { id, accessCase -> legacyAccess(accessCase) }.keySet().sort()
+
+    where:
+    type << ['bucket', 'group', 'view']
+  }
+
+  def "should not give access to the deleted items and to the items of another project"() {
+    given:
+    createMember()
+    def deleted = createItem(type, [direct: true, role: null, teams: 'none'])
+    markDeleted(type, deleted)
+    createItem(type, [direct: true, role: null, teams: 'none'])
+    projectId = projectId + 100000
+    authenticate()
+
+    expect:
+    getAccessTree(accessTreeService, type).isEmpty()
+
+    where:
+    type << ['bucket', 'group', 'view']
+  }
+
+  def "should run one statement per item type whatever the number of items"() {
+    given:
+    createMember()
+    (1..count).each {
+      ['bucket', 'group', 'view'].each { type ->
+        createItem(type, [direct: false, role: null, teams: 'shared'])
+        createItem(type, [direct: true, role: Constants.ROLE_ADMIN, teams: 'other'])
+      }
+    }
+    def countingDataSource = new StatementCountingDataSource(dataSource)
+    def service = new AccessTreeService()
+    ReflectionTestUtils.setField(service, 'jdbcTemplate', new NamedParameterJdbcTemplate(countingDataSource))
+
+    when:
+    def buckets = service.getAccessTreeBuckets(member)
+    def groups = service.getAccessTreeGroups(member)
+    def views = service.getAccessTreeViews(member)
+
+    then:
+    countingDataSource.statements.get() == 3
+    buckets.size() == 2 * count
+    groups.size() == 2 * count
+    views.size() == 2 * count
+
+    where:
+    count << [1, 25]
+  }
+
+  // The user of the access tree, a member of the shared team with the member role
+  private void createMember() {
+    teams = [shared: createTeam(), other: createTeam()]
+    member = new User()
+    member.username = uniqueName('member-')
+    member.password = 'member'
+    member.roles = [roleRepository.findByName(Constants.ROLE_MEMBER)] as Set
+    member.teams = [teams.shared] as Set
+    member = userRepository.save(member)
+  }
+
+  // The rule of the removed hasUserAccessToBucket, hasUserAccessToGroup and hasUserAccessToView
+  private static boolean legacyAccess(Map<String, Object> accessCase) {
+    if (accessCase.direct)
+      return true
+
+    boolean hasTeams = accessCase.teams != 'none'
+    boolean accessByRole = accessCase.role != null ? accessCase.role == Constants.ROLE_MEMBER : hasTeams
+    boolean accessByTeam = hasTeams ? accessCase.teams == 'shared' : accessCase.role != null
+    return accessByRole && accessByTeam
+  }
+
+  private List getAccessTree(AccessTreeService service, String type) {
+    switch (type) {
+      case 'bucket': return service.getAccessTreeBuckets(member)
+      case 'group': return service.getAccessTreeGroups(member)
+      default: return service.getAccessTreeViews(member)
+    }
+  }
+
+  private Team createTeam() {
+    def team = new Team()
+    team.name = uniqueName('team-')
+    return teamRepository.save(team)
+  }
+
+  // Returns the id of the saved item
+  private long createItem(String type, Map<String, Object> accessCase) {
+    def item = [bucket: new Bucket(), group: new Group(), view: new View()][type]
+    item.name = uniqueName(type + '-')
+    item.users = accessCase.direct ? [member] as Set : [] as Set
+    item.role = accessCase.role != null ? roleRepository.findByName(accessCase.role as String) : null
+    item.teams = accessCase.teams != 'none' ? [teams[accessCase.teams]] as Set : [] as Set
+    return repository(type).save(item).id
+  }
+
+  private void markDeleted(String type, long id) {
+    def item = repository(type).findById(id).get()
+    item.deleted = true
+    repository(type).save(item)
+  }
+
+  private repository(String type) {
+    return [bucket: bucketRepository, group: groupRepository, view: viewRepository][type]
+  }
+
+  // Counts the statements prepared on the connections taken from the data source
+  static class StatementCountingDataSource extends DelegatingDataSource {
+
+    final AtomicInteger statements = new AtomicInteger()
+
+    StatementCountingDataSource(DataSource dataSource) {
+      super(dataSource)
+    }
+
+    @Override
+    Connection getConnection() throws SQLException {
+      def connection = super.getConnection()
+      def handler = { proxy, Method method, Object[] args ->
+        if (method.name in ['prepareStatement', 'prepareCall', 'createStatement'])
+          statements.incrementAndGet()
+        try {
+          return method.invoke(connection, args)
+        } catch (InvocationTargetException e) {
+          throw e.cause
+        }
+      } as InvocationHandler
+      return Proxy.newProxyInstance(Connection.classLoader ?: getClass().classLoader, [Connection] as Class[], handler) as Connection
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package pl.databucket.service.data
+
+import spock.lang.Specification
+
+class DataCountCacheSpec extends Specification {
+
+  def cache = new DataCountCache(100, 60)
+
+  def "should return the stored count"() {
+    given:
+    def key = DataCountCache.getKey('SELECT count(*)', [a: 1])
+
+    when:
+    cache.put('x-bucket-1', cache.getVersion('x-bucket-1'), key, 10L)
+
+    then:
+    cache.get('x-bucket-1', key) == 10L
+    cache.get('x-bucket-1', DataCountCache.getKey('SELECT count(*)', [a: 2])) == null
+  }
+
+  def "should drop the counts of the modified bucket only"() {
+    given:
+    cache.put('x-bucket-1', cache.getVersion('x-bucket-1'), 'key', 10L)
+    cache.put('x-bucket-2', cache.getVersion('x-bucket-2'), 'key', 20L)
+
+    when:
+    cache.invalidate('x-bucket-1')
+
+    then:
+    cache.get('x-bucket-1', 'key') == null
+    cache.get('x-bucket-2', 'key') == 20L
+  }
+
+  def "should not store a count computed during a modification"() {
+    given:
+    def version = cache.getVersion('x-bucket-1')
+
+    when:
+    cache.invalidate('x-bucket-1')
+    cache.put('x-bucket-1', version, 'key', 10L)
+
+    then:
+    cache.get('x-bucket-1', 'key') == null
+  }
+
+  def "should keep the counts stored after the modification"() {
+    given:
+    cache.invalidate('x-bucket-1')
+
+    when:
+    cache.put('x-bucket-1', cache.getVersion('x-bucket-1'), 'key', 10L)
+
+    then:
+    cache.get('x-bucket-1', 'key') == 10L
+  }
+
+  def "should drop the least recently used count over the size"() {
+    given:
+    def smallCache = new DataCountCache(2, 60)
+    smallCache.put('x-bucket-1', 0, 'first', 1L)
+    smallCache.put('x-bucket-1', 0, 'second', 2L)
+    smallCache.get('x-bucket-1', 'first')
+
+    when:
+    smallCache.put('x-bucket-1', 0, 'third', 3L)
+
+    then:
+    smallCache.get('x-bucket-1', 'first') == 1L
+    smallCache.get('x-bucket-1', 'second') == null
+    smallCache.get('x-bucket-1', 'third') == 3L
+  }
+
+  def "should not return an expired count"() {
+    given:
+    def expiringCache = new DataCountCache(100, 0)
+    expiringCache.put('x-bucket-1', 0, 'key', 10L)
+
+    when:
+    sleep(5)
+
+    then:
+    expiringCache.get('x-bucket-1', 'key') == null
+  }
+
+  def "should build the same key for the same parameters in any order"() {
+    expect:
+    DataCountCache.getKey('SELECT count(*)', [a: 1, b: 2]) == DataCountCache.getKey('SELECT count(*)', [b: 2, a: 1])
+  }
+}
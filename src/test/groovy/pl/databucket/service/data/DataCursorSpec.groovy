@@ -0,0 +1,39 @@
+package pl.databucket.service.data
+
+import spock.lang.Specification
+
+class DataCursorSpec extends Specification {
+
+  def "should decode the encoded cursor"() {
+    when:
+    def cursor = DataCursor.decode(new DataCursor(value, 42L).encode())
+
+    then:
+    cursor.value == value
+    cursor.id == 42L
+
+    where:
+    value << ['abc', '2021-01-01 10:00:00', 'a "quoted" value/with+chars', '', null]
+  }
+
+  def "should encode the cursor url safe and without padding"() {
+    when:
+    def encoded = new DataCursor('?&=/+ \u017c\u00f3\u0142w', 1L).encode()
+
+    then:
+    !encoded.contains('+')
+    !encoded.contains('/')
+    !encoded.contains('=')
+  }
+
+  def "should reject a cursor which is not valid"() {
+    when:
+    DataCursor.decode(cursor)
+
+    then:
+    thrown(IllegalArgumentException)
+
+    where:
+    cursor << ['not a cursor', '', Base64.urlEncoder.encodeToString('[1, 2]'.bytes)]
+  }
+}
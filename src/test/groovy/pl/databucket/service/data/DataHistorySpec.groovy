@@ -0,0 +1,164 @@
+package pl.databucket.service.data
+
+import pl.databucket.IntegrationSpec
+import pl.databucket.dto.BucketDto
+import pl.databucket.dto.DataModifyDto
+import pl.databucket.service.BucketService
+
+class DataHistorySpec extends IntegrationSpec {
+
+  def "should rebuild every version of the properties from the history"() {
+    given:
+    def bucket = createBucket(true)
+    def expected = versions(count)
+    def dataId = createData(bucket, [expected[0]])[0]
+
+    when:
+    expected.drop(1).each { modify(bucket, dataId, it) }
+    def historyIds = propertiesHistoryIds(bucket, dataId)
+
+    then:
+    historyIds.size() == expected.size()
+    dataService.getDataHistoryProperties(bucket, dataId, historyIds).collect { propertiesOf(it) } == expected
+    wholeVersions(bucket, dataId) == whole
+
+    where:
+    count || whole
+    5     || [0]
+    25    || [0, 20]
+  }
+
+  def "should rebuild the versions requested from the middle of the history"() {
+    given:
+    def bucket = createBucket(true)
+    def expected = versions(25)
+    def dataId = createData(bucket, [expected[0]])[0]
+    expected.drop(1).each { modify(bucket, dataId, it) }
+    def historyIds = propertiesHistoryIds(bucket, dataId)
+
+    when:
+    def result = dataService.getDataHistoryProperties(bucket, dataId, requested.collect { historyIds[it] })
+
+    then:
+    result.collect { it.id } == requested.collect { historyIds[it] }
+    result.collect { propertiesOf(it) } == requested.collect { expected[it] }
+
+    where:
+    requested << [[3, 7], [19, 20, 21], [22, 24], [24]]
+  }
+
+  def "should not add a properties version when only the reservation changes"() {
+    given:
+    def bucket = createBucket(true)
+    def dataId = createData(bucket, [[a: 1]])[0]
+    def dataModifyDto = new DataModifyDto()
+    dataModifyDto.reserved = true
+
+    when:
+    dataService.modifyData(user, bucket, Optional.of([dataId]), dataModifyDto, new QueryRule())
+    modify(bucket, dataId, [a: 2])
+
+    then:
+    dataService.getDataHistory(bucket, dataId).count { it.properties } == 2
+    dataService.getDataHistoryProperties(bucket, dataId, propertiesHistoryIds(bucket, dataId)).collect { propertiesOf(it) } == [[a: 1], [a: 2]]
+  }
+
+  def "should store the first version of a month whole"() {
+    given: 'the versions written so far moved to the previous month'
+    def bucket = createBucket(true)
+    def expected = versions(5)
+    def dataId = createData(bucket, [expected[0]])[0]
+    modify(bucket, dataId, expected[1])
+    modify(bucket, dataId, expected[2])
+    jdbcTemplate.update("UPDATE \"${bucket.tableHistoryName}\" SET modified_at = modified_at - interval '1 month' WHERE data_id = ?".toString(), dataId)
+
+    when:
+    modify(bucket, dataId, expected[3])
+    modify(bucket, dataId, expected[4])
+
+    then:
+    wholeVersions(bucket, dataId) == [0, 3]
+    dataService.getDataHistoryProperties(bucket, dataId, propertiesHistoryIds(bucket, dataId)).collect { propertiesOf(it) } == expected
+
+    when: 'the previous month is dropped by the retention'
+    jdbcTemplate.update("DELETE FROM \"${bucket.tableHistoryName}\" WHERE data_id = ? AND modified_at < date_trunc('month', localtimestamp)".toString(), dataId)
+
+    then:
+    dataService.getDataHistoryProperties(bucket, dataId, propertiesHistoryIds(bucket, dataId)).collect { propertiesOf(it) } == expected.drop(3)
+  }
+
+  def "should store the first version after the history is turned on again whole"() {
+    given:
+    def bucket = createBucket(true)
+    def expected = versions(6)
+    def dataId = createData(bucket, [expected[0]])[0]
+    modify(bucket, dataId, expected[1])
+    modify(bucket, dataId, expected[2])
+
+    when: 'the properties are changed while the history is off'
+    switchHistory(bucket, false)
+    modify(bucket, dataId, expected[3])
+    switchHistory(bucket, true)
+    modify(bucket, dataId, expected[4])
+    modify(bucket, dataId, expected[5])
+
+    then: 'no entry is added for turning the history on'
+    dataService.getDataHistory(bucket, dataId).count { it.properties } == 5
+    wholeVersions(bucket, dataId) == [0, 3]
+    dataService.getDataHistoryProperties(bucket, dataId, propertiesHistoryIds(bucket, dataId)).collect { propertiesOf(it) } == expected - [expected[3]]
+  }
+
+  def "should reject a snapshot interval below 1"() {
+    when:
+    BucketService.checkSnapshotInterval(interval)
+
+    then:
+    thrown(IllegalArgumentException)
+
+    where:
+    interval << [0, -1]
+  }
+
+  // Documents of the consecutive versions, each one differs from the previous one by nested changes, removed
+  // fields, arrays and null values
+  static List<Map<String, Object>> versions(int count) {
+    return (0..<count).collect { i ->
+      def document = [n: i, name: 'version ' + i, list: (0..<(i % 4)).toList()]
+      if (i % 4 == 3)
+        document.nested = 'text'
+      else if (i % 3 == 0)
+        document.nested = [:]
+      else
+        document.nested = [a: [b: i % 3, c: i % 2 == 0 ? null : 'c' + i]]
+      if (i % 2 == 0)
+        document.optional = null
+      if (i % 5 == 0)
+        document.extra = [deep: [deeper: [i]]]
+      return document
+    }
+  }
+
+  void modify(bucket, long dataId, Map<String, Object> properties) {
+    def dataModifyDto = new DataModifyDto()
+    dataModifyDto.properties = rawJson(properties)
+    dataService.modifyData(user, bucket, Optional.of([dataId]), dataModifyDto, new QueryRule())
+  }
+
+  void switchHistory(bucket, boolean history) {
+    def bucketDto = new BucketDto()
+    bucketDto.id = bucket.id
+    bucketDto.name = bucket.name
+    bucketDto.history = history
+    bucketService.modifyBucket(bucketDto)
+  }
+
+  // Ids of the history rows changing the properties, in the order of the changes
+  List<Long> propertiesHistoryIds(bucket, long dataId) {
+    return dataService.getDataHistory(bucket, dataId).findAll { it.properties }.collect { it.id as Long }.sort()
+  }
+
+  // Versions stored as the whole document
+  List<Integer> wholeVersions(bucket, long dataId) {
+    return jdbcTemplate.queryForList("SELECT properties_version FROM \"${bucket.tableHistoryName}\" WHERE data_id = ? AND properties IS NOT NULL ORDER BY 1".toString(), Integer, dataId)
+  }
+}
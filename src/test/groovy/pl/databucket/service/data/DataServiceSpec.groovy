@@ -0,0 +1,406 @@
+package pl.databucket.service.data
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.springframework.jdbc.core.ConnectionCallback
+import org.springframework.test.util.ReflectionTestUtils
+import pl.databucket.IntegrationSpec
+import pl.databucket.dto.DataModifyDto
+import pl.databucket.dto.DataModifyItemDto
+
+import java.sql.Connection
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+class DataServiceSpec extends IntegrationSpec {
+
+  static final List<String> VALUES = ['b', 'a', null, 'c', 'a', null, 'b', 'c', 'a', null, 'b']
+
+  // The jsonb_merge function removed from schema.sql, created as a temporary function of the session
+  static final String JSONB_MERGE = '''CREATE OR REPLACE FUNCTION pg_temp.jsonb_merge(IN orig jsonb, IN delta jsonb) RETURNS jsonb AS $$
+select jsonb_object_agg(coalesce(keyOrig, keyDelta), case when valOrig isnull then valDelta when valDelta isnull then valOrig when (jsonb_typeof(valOrig) <> 'object' or jsonb_typeof(valDelta) <> 'object') then valDelta else pg_temp.jsonb_merge(valOrig, valDelta) end)
+from jsonb_each(orig) e1(keyOrig, valOrig) full join jsonb_each(delta) e2(keyDelta, valDelta) on keyOrig = keyDelta;
+$$ LANGUAGE sql'''
+
+  static final ObjectMapper MAPPER = new ObjectMapper()
+
+  def "should return every row once when the pages are read by the cursor"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, VALUES.collect { [s: it] })
+
+    when:
+    def pages = readPages(bucket, new QueryRule(), sort, 3)
+
+    then:
+    pages.flatten() == sorted(ids, VALUES, sort)
+    pages.every { it.size() <= 3 }
+
+    where:
+    sort << ['id', 'desc(id)', '$.s', 'desc($.s)']
+  }
+
+  def "should not let the rules joined by or skip the cursor"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, VALUES.collect { [s: it] })
+    def queryRule = new QueryRule()
+    queryRule.operator = Operator.or
+    queryRule.conditions.add(new Condition('$.s', Operator.equal, 'a'))
+    queryRule.conditions.add(new Condition('$.s', Operator.equal, 'c'))
+    def matching = [ids, VALUES].transpose().findAll { it[1] in ['a', 'c'] }
+
+    when:
+    def pages = readPages(bucket, queryRule, sort, 2)
+
+    then:
+    pages.flatten() == sorted(matching*.getAt(0), matching*.getAt(1), sort)
+
+    where:
+    sort << ['id', '$.s', 'desc($.s)']
+  }
+
+  def "should reject the random sort with the cursor"() {
+    given:
+    def bucket = createBucket()
+
+    when:
+    dataService.getData(user, bucket, Optional.empty(), new QueryRule(), Optional.empty(), Optional.of(3), Optional.of('random'), Optional.of(''), CountMode.none)
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+  def "should count the rows matching the rules"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, VALUES.collect { [s: it] })
+
+    when:
+    def result = dataService.getData(user, bucket, Optional.empty(), rule(value), Optional.of(page), Optional.of(3), Optional.empty(), Optional.empty(), CountMode.exact)
+
+    then:
+    result[ResultField.TOTAL] == total
+
+    where:
+    value | page || total
+    null  | 1    || 11
+    null  | 4    || 11
+    null  | 5    || 11
+    'a'   | 1    || 3
+    'a'   | 2    || 3
+    'd'   | 1    || 0
+  }
+
+  def "should count the rows of the cursor page"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, VALUES.collect { [s: it] })
+
+    when:
+    def result = dataService.getData(user, bucket, Optional.empty(), rule('b'), Optional.empty(), Optional.of(2), Optional.empty(), Optional.of(''), CountMode.exact)
+
+    then:
+    result[ResultField.TOTAL] == 3
+    result[ResultField.DATA].size() == 2
+  }
+
+  def "should not count the rows when the count is not wanted"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, VALUES.collect { [s: it] })
+
+    when:
+    def result = dataService.getData(user, bucket, Optional.empty(), new QueryRule(), Optional.of(1), Optional.of(3), Optional.empty(), Optional.empty(), CountMode.none)
+
+    then:
+    !result.containsKey(ResultField.TOTAL)
+    result[ResultField.DATA].size() == 3
+  }
+
+  def "should estimate the count from the table statistics"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, VALUES.collect { [s: it] })
+    jdbcTemplate.execute("ANALYZE \"${bucket.tableName}\"")
+
+    when:
+    def all = dataService.getData(user, bucket, Optional.empty(), new QueryRule(), Optional.of(1), Optional.of(3), Optional.empty(), Optional.empty(), CountMode.estimate)
+    def filtered = dataService.getData(user, bucket, Optional.empty(), rule('a'), Optional.of(1), Optional.of(3), Optional.empty(), Optional.empty(), CountMode.estimate)
+
+    then:
+    all[ResultField.TOTAL] == 11
+    filtered[ResultField.TOTAL] >= 1
+    filtered[ResultField.TOTAL] <= 11
+  }
+
+  def "should keep the cached count until the bucket is modified by the service"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, VALUES.collect { [s: it] })
+
+    when: 'the count is cached and a row is added behind the service'
+    def first = cachedTotal(bucket)
+    jdbcTemplate.update("INSERT INTO \"${bucket.tableName}\" (properties, created_by) VALUES ('{}', 'super')")
+
+    then:
+    first == 11
+    cachedTotal(bucket) == 11
+
+    when: 'a row is added by the service'
+    createData(bucket, [[s: 'a']])
+
+    then:
+    cachedTotal(bucket) == 13
+  }
+
+  def "should not reserve a row twice when the reservations run in parallel"() {
+    given:
+    def bucket = createBucket()
+    createData(bucket, (1..rows).collect { [n: it] })
+    def start = new CountDownLatch(1)
+    def executor = Executors.newFixedThreadPool(threads)
+    def reserver = user
+
+    when:
+    def futures = (1..threads).collect {
+      executor.submit({
+        authenticate()
+        start.await()
+        return reserve(reserver, bucket, limit)
+      } as Callable)
+    }
+    start.countDown()
+    def reserved = futures.collectMany { it.get() }
+    executor.shutdown()
+
+    then:
+    reserved.size() == reserved.toSet().size()
+    reserved.size() == Math.min(threads * limit, rows)
+    jdbcTemplate.queryForObject("SELECT count(*) FROM \"${bucket.tableName}\" WHERE reserved", Long) == reserved.size()
+
+    where:
+    threads | limit | rows
+    8       | 5     | 50
+    8       | 10    | 50
+    16      | 1     | 10
+  }
+
+  private List<Long> reserve(reserver, bucket, int limit) {
+    return dataService.reserveData(reserver, bucket, Optional.empty(), new QueryRule(), Optional.of(limit), Optional.empty(), 'super', Optional.empty())*.id
+  }
+
+  def "should set and remove the properties the same way as jsonb_merge did"() {
+    given:
+    def bucket = createBucket()
+    def dataId = createData(bucket, [original])[0]
+    def dataModifyDto = new DataModifyDto()
+    dataModifyDto.propertiesToSet = toSet
+    dataModifyDto.propertiesToRemove = toRemove
+
+    when:
+    dataService.modifyData(user, bucket, Optional.of([dataId]), dataModifyDto, new QueryRule())
+
+    then:
+    storedProperties(bucket, dataId) == legacyPatch(original, toSet, toRemove)
+
+    where:
+    original                              | toSet                                              | toRemove
+    [a: [b: 1, c: 2], d: 3]               | ['$.a.b': 5]                                       | null
+    [a: [b: 1, c: 2, e: [g: 2]]]          | ['$.a': [b: 7, e: [f: 1]]]                         | null
+    [x: 1]                                | ['$.a.b.c': 1, '$.y.z': [w: 'w']]                  | null
+    [a: 1, b: [1, 2], c: 'text', n: null] | ['$.a.b': 1, '$.b.c': 2, '$.c.d.e': 3, '$.n.m': 4] | null
+    [a: [b: 1]]                           | ['$.a': [:]]                                       | null
+    [a: 1]                                | ['$.a': [:]]                                       | null
+    [a: [b: 1, c: 2], d: 3]               | ['$.a.e': 4]                                       | ['$.a.c', '$.d']
+    [a: [b: 1], d: 3]                     | ['$.z': null, '$.d': [1, [x: 1]]]                  | ['$.x.y', '$.a.b']
+    [a: [b: 1], d: 3]                     | null                                               | ['$.a.b', '$.d']
+    [q: 'a']                              | ['$.q': "it's", '$.r.s': "'"]                      | null
+  }
+
+  def "should apply its own change to each of the modified rows"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, (0..5).collect { [n: it, a: [b: it]] })
+    def items = [
+        item(ids[0]) { it.properties = rawJson([replaced: true]) },
+        item(ids[1]) { it.propertiesToSet = ['$.a.c': 'c1'] },
+        item(ids[2]) { it.propertiesToSet = ['$.a.c': 'c2'] },
+        item(ids[3]) { it.propertiesToRemove = ['$.a.b'] },
+        item(ids[4]) { it.propertiesToSet = ['$.x': 4]; it.propertiesToRemove = ['$.n']; it.reserved = true }
+    ]
+
+    when:
+    def count = dataService.modifyData(user, bucket, items)
+
+    then:
+    count == 5
+    storedProperties(bucket, ids[0]) == [replaced: true]
+    storedProperties(bucket, ids[1]) == [n: 1, a: [b: 1, c: 'c1']]
+    storedProperties(bucket, ids[2]) == [n: 2, a: [b: 2, c: 'c2']]
+    storedProperties(bucket, ids[3]) == [n: 3, a: [:]]
+    storedProperties(bucket, ids[4]) == [a: [b: 4], x: 4]
+    storedProperties(bucket, ids[5]) == [n: 5, a: [b: 5]]
+    reservedIds(bucket) == [ids[4]]
+  }
+
+  def "should not count the rows which do not exist"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, [[n: 0]])
+
+    expect:
+    dataService.modifyData(user, bucket, [item(ids[0]) { it.properties = rawJson([n: 1]) }, item(ids[0] + 1000) { it.properties = rawJson([n: 2]) }]) == 1
+    storedProperties(bucket, ids[0]) == [n: 1]
+  }
+
+  def "should return the modified rows only"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, [[n: 0], [n: 1], [n: 2]])
+    def items = [item(ids[0]) { it.properties = rawJson([n: 10]) }, item(ids[1]) { it.propertiesToSet = ['$.m': 1] }, item(ids[2] + 1000) { it.properties = rawJson([n: 30]) }]
+
+    when:
+    def rows = dataService.modifyDataReturning(user, bucket, items)
+
+    then:
+    rows.collectEntries { [(it.id): propertiesOf(it)] } == [(ids[0]): [n: 10], (ids[1]): [n: 1, m: 1]]
+    storedProperties(bucket, ids[2]) == [n: 2]
+  }
+
+  def "should reject the items with a missing or a repeated id and modify nothing"() {
+    given:
+    def bucket = createBucket()
+    def ids = createData(bucket, [[n: 0], [n: 1]])
+
+    when:
+    dataService.modifyData(user, bucket, itemIds.collect { index -> item(index != null ? ids[index] : null) { it.properties = rawJson([changed: true]) } })
+
+    then:
+    def e = thrown(IllegalArgumentException)
+    e.message == message.replace('<id>', String.valueOf(ids[0]))
+    storedProperties(bucket, ids[0]) == [n: 0]
+    storedProperties(bucket, ids[1]) == [n: 1]
+
+    where:
+    itemIds      | message
+    [0, null]    | 'Each modified item must have the id!'
+    [0, 1, 0]    | 'The data row <id> is modified more than once!'
+  }
+
+  def "should delete by the rules at once only up to the limit"() {
+    given:
+    def bucket = createBucket(true)
+    def ids = createData(bucket, VALUES.collect { [s: it] })
+    def syncDeleteLimit = ReflectionTestUtils.getField(dataService, 'syncDeleteLimit')
+    ReflectionTestUtils.setField(dataService, 'syncDeleteLimit', limit)
+
+    when:
+    def count = dataService.deleteDataByRules(user, bucket, rule('a'))
+
+    then:
+    count == expected
+    def remaining = expected.isPresent() ? ids.findAll { VALUES[ids.indexOf(it)] != 'a' } : ids
+    jdbcTemplate.queryForList("SELECT data_id FROM \"${bucket.tableName}\" ORDER BY data_id".toString(), Long) == remaining
+    jdbcTemplate.queryForList("SELECT DISTINCT data_id FROM \"${bucket.tableHistoryName}\" ORDER BY data_id".toString(), Long) == remaining
+
+    cleanup:
+    ReflectionTestUtils.setField(dataService, 'syncDeleteLimit', syncDeleteLimit)
+
+    where:
+    limit || expected
+    3     || Optional.of(3)
+    2     || Optional.empty()
+  }
+
+  private static DataModifyItemDto item(Long id, Closure change) {
+    def item = new DataModifyItemDto()
+    item.id = id
+    change(item)
+    return item
+  }
+
+  private List<Long> reservedIds(bucket) {
+    return jdbcTemplate.queryForList("SELECT data_id FROM \"${bucket.tableName}\" WHERE reserved ORDER BY data_id".toString(), Long)
+  }
+
+  private long cachedTotal(bucket) {
+    return dataService.getData(user, bucket, Optional.empty(), new QueryRule(), Optional.of(1), Optional.of(3), Optional.empty(), Optional.empty(), CountMode.cached)[ResultField.TOTAL]
+  }
+
+  private Map<String, Object> storedProperties(bucket, long dataId) {
+    return MAPPER.readValue(jdbcTemplate.queryForObject("SELECT properties::text FROM \"${bucket.tableName}\" WHERE data_id = ?".toString(), String, dataId), Map)
+  }
+
+  // The result of the update as generated before jsonb_merge was removed: the removed paths with #-, then the set
+  // values built into one object and merged into the document
+  private Map<String, Object> legacyPatch(Map<String, Object> original, Map<String, Object> toSet, List<String> toRemove) {
+    def sql = 'CAST(? AS jsonb)'
+    def params = [MAPPER.writeValueAsString(original)]
+    toRemove?.each {
+      sql += ' #- CAST(? AS text[])'
+      params << '{' + it.replace('$.', '').replace('.', ',') + '}'
+    }
+    if (toSet) {
+      def delta = [:]
+      toSet.each { key, value ->
+        def nodes = key.replace('$.', '').split('\\.')
+        def node = delta
+        nodes.toList().subList(0, nodes.length - 1).each {
+          if (!(node[it] instanceof Map))
+            node[it] = [:]
+          node = node[it]
+        }
+        node[nodes[-1]] = value
+      }
+      sql = "pg_temp.jsonb_merge(${sql}, CAST(? AS jsonb))"
+      params << MAPPER.writeValueAsString(delta)
+    }
+
+    def result = jdbcTemplate.execute({ Connection connection ->
+      connection.createStatement().withCloseable { it.execute(JSONB_MERGE) }
+      return connection.prepareStatement("SELECT (${sql})::text".toString()).withCloseable { statement ->
+        params.eachWithIndex { param, i -> statement.setString(i + 1, param) }
+        return statement.executeQuery().withCloseable { resultSet ->
+          resultSet.next()
+          return resultSet.getString(1)
+        }
+      }
+    } as ConnectionCallback)
+    return MAPPER.readValue(result, Map)
+  }
+
+  // Rule matching the rows of the given value, all rows for null
+  private static QueryRule rule(String value) {
+    def queryRule = new QueryRule()
+    if (value != null)
+      queryRule.conditions.add(new Condition('$.s', Operator.equal, value))
+    return queryRule
+  }
+
+  // Ids of the pages read from the first one (empty cursor) until there is no next cursor
+  private List<List<Long>> readPages(bucket, QueryRule queryRule, String sort, int limit) {
+    def pages = []
+    def cursor = ''
+    while (cursor != null) {
+      def rule = new QueryRule()
+      rule.operator = queryRule.operator
+      rule.conditions.addAll(queryRule.conditions)
+      def result = dataService.getData(user, bucket, Optional.empty(), rule, Optional.empty(), Optional.of(limit), Optional.of(sort), Optional.of(cursor), CountMode.none)
+      pages << result[ResultField.DATA]*.id
+      cursor = result[ResultField.NEXT]
+    }
+    return pages
+  }
+
+  // Order of the cursor pages: by the sort key with nulls last and then by the id, reversed for the descending sort
+  private static List<Long> sorted(List<Long> ids, List<String> values, String sort) {
+    def rows = [ids, values].transpose()
+    if (sort in ['id', 'desc(id)'])
+      rows.sort { a, b -> a[0] <=> b[0] }
+    else
+      rows.sort { a, b -> (a[1] == null) <=> (b[1] == null) ?: a[1] <=> b[1] ?: a[0] <=> b[0] }
+    def order = rows*.getAt(0)
+    return sort.startsWith('desc(') ? order.reverse() : order
+  }
+}
@@ -0,0 +1,57 @@
+package pl.databucket.service.data
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.node.ObjectNode
+import spock.lang.Specification
+
+class HistoryDiffSpec extends Specification {
+
+  def "should apply the operations as returned by jsonb_diff"() {
+    given:
+    def document = (ObjectNode) json('{"a": {"b": 1, "c": 2}, "d": 3}')
+
+    when:
+    HistoryDiff.apply(document, json('[{"p": ["a", "b"], "v": 5}, {"p": ["a", "c"]}, {"p": ["e"], "v": {"f": 1}}]'))
+
+    then:
+    document == json('{"a": {"b": 5}, "d": 3, "e": {"f": 1}}')
+  }
+
+  def "should create the missing objects of the path set"() {
+    given:
+    def document = (ObjectNode) json('{"a": 1}')
+
+    when:
+    HistoryDiff.apply(document, json('[{"p": ["a", "b", "c"], "v": 2}, {"p": ["x", "y"], "v": 3}]'))
+
+    then:
+    document == json('{"a": {"b": {"c": 2}}, "x": {"y": 3}}')
+  }
+
+  def "should ignore the removal of a path which does not exist"() {
+    given:
+    def document = (ObjectNode) json('{"a": 1, "b": {"c": 2}}')
+
+    when:
+    HistoryDiff.apply(document, json('[{"p": ["x", "y"]}, {"p": ["a", "b"]}, {"p": ["b", "d"]}, {"p": []}, {"v": 1}]'))
+
+    then:
+    document == json('{"a": 1, "b": {"c": 2}}')
+  }
+
+  def "should not change the document for an empty diff"() {
+    given:
+    def document = (ObjectNode) json('{"a": {"b": 1}}')
+
+    when:
+    HistoryDiff.apply(document, json('[]'))
+
+    then:
+    document == json('{"a": {"b": 1}}')
+  }
+
+  private static JsonNode json(String text) {
+    return new ObjectMapper().readTree(text)
+  }
+}
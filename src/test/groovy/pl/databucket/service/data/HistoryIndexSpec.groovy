@@ -0,0 +1,46 @@
+package pl.databucket.service.data
+
+import pl.databucket.IntegrationSpec
+
+class HistoryIndexSpec extends IntegrationSpec {
+
+  def "should build the missing index of the partitioned history table partition by partition"() {
+    given: 'a history table without its index, as created by an older version'
+    def bucket = createBucket(true)
+    def historyTable = bucket.tableHistoryName
+    def partitions = partitionsOf(historyTable)
+    jdbcTemplate.execute("DROP INDEX \"${historyTable}-data\"")
+
+    and: 'a build interrupted after the first partition'
+    if (interrupted) {
+      jdbcTemplate.execute(HistoryPartitionService.getHistoryParentIndexSql(historyTable))
+      jdbcTemplate.execute(HistoryPartitionService.getHistoryIndexSql(partitions[0], false))
+      jdbcTemplate.execute("ALTER INDEX \"${historyTable}-data\" ATTACH PARTITION \"${partitions[0]}-data\"")
+    }
+
+    when:
+    dataService.buildMissingIndexes()
+
+    then:
+    partitions.size() > 1
+    isValid("${historyTable}-data")
+    attachedIndexes("${historyTable}-data") == partitions.collect { it + '-data' }.sort()
+
+    where:
+    interrupted << [false, true]
+  }
+
+  private List<String> partitionsOf(String table) {
+    return jdbcTemplate.queryForList("SELECT c.relname::text FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+        + " JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?", String, table).sort()
+  }
+
+  // The indexes are attached to the index of the parent table the same way as the partitions to the table
+  private List<String> attachedIndexes(String index) {
+    return partitionsOf(index)
+  }
+
+  private boolean isValid(String index) {
+    return jdbcTemplate.queryForObject("SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid WHERE c.relname = ?", Boolean, index)
+  }
+}
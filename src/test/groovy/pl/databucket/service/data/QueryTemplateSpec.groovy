@@ -0,0 +1,95 @@
+package pl.databucket.service.data
+
+import org.slf4j.LoggerFactory
+import spock.lang.Specification
+
+class QueryTemplateSpec extends Specification {
+
+  def logger = LoggerFactory.getLogger(QueryTemplateSpec)
+
+  def "should give the same shape to rules differing in constants only"() {
+    expect:
+    QueryTemplate.getShape(rule(new Condition('$.name', Operator.equal, 'first'), new Condition('data_id', Operator.grater, 1))) ==
+        QueryTemplate.getShape(rule(new Condition('$.name', Operator.equal, 'second'), new Condition('data_id', Operator.grater, 2)))
+  }
+
+  def "should give a different shape to rules generating a different SQL"() {
+    expect:
+    QueryTemplate.getShape(rule(first)) != QueryTemplate.getShape(rule(second))
+
+    where:
+    first                                                           | second
+    new Condition('$.name', Operator.equal, 'value')                | new Condition('$.name', Operator.notEqual, 'value')
+    new Condition('$.name', Operator.equal, 'value')                | new Condition('$.other', Operator.equal, 'value')
+    new Condition('$.name', Operator.equal, 'value')                | new Condition('$.name', Operator.equal, 1)
+    new Condition('$.name', Operator.equal, 'value')                | new Condition('$.name', Operator.equal, null)
+    new Condition('$.name', Operator.equal, 'value')                | new Condition('$.name', Operator.equal, '2021-01-01T10:00:00.000Z')
+    new Condition('$.name', Operator.in, ['a', 'b'])                | new Condition('$.name', Operator.in, ['a', 'c'])
+  }
+
+  def "should not confuse the shapes of different property paths"() {
+    expect:
+    QueryTemplate.getShape(rule(new Condition('$.a', Operator.equal, 'value'), new Condition('$.b', Operator.equal, 'value'))) !=
+        QueryTemplate.getShape(rule(new Condition('$.a', Operator.equal, 'value'), new Condition('$.b;', Operator.equal, 'value')))
+  }
+
+  def "should bind the constants of the rule to the cached template"() {
+    given:
+    def cache = new QueryTemplateCache(10)
+    def firstRule = rule(new Condition('$.name', Operator.equal, 'first'), new Condition('data_id', Operator.grater, 1))
+    def secondRule = rule(new Condition('$.name', Operator.equal, 'second'), new Condition('data_id', Operator.grater, 2))
+    def firstParams = [:]
+    def secondParams = [:]
+    def expectedParams = [:]
+
+    when:
+    def firstSql = new Query('bucket').select('*').from().where(firstRule, firstParams, cache).toString(logger, firstParams)
+    def secondSql = new Query('bucket').select('*').from().where(secondRule, secondParams, cache).toString(logger, secondParams)
+    def expectedSql = new Query('bucket').select('*').from().where(secondRule, expectedParams).toString(logger, expectedParams)
+
+    then:
+    secondSql == firstSql
+    secondSql == expectedSql
+    secondParams == expectedParams
+    firstParams != secondParams
+    cache.statistics.hits == 1
+    cache.statistics.misses == 1
+  }
+
+  def "should bind a date constant as a timestamp"() {
+    given:
+    def cache = new QueryTemplateCache(10)
+    def params = [:]
+    def queryRule = rule(new Condition('modified_at', Operator.grater, '2021-01-01T10:00:00.000Z'))
+
+    when:
+    new Query('bucket').select('*').from().where(queryRule, [:], cache)
+    new Query('bucket').select('*').from().where(queryRule, params, cache)
+
+    then:
+    params.values().every { it instanceof java.sql.Timestamp }
+    !params.isEmpty()
+  }
+
+  def "should parse the date at the beginning of the string"() {
+    expect:
+    (Query.isValidDate(date) != null) == valid
+
+    where:
+    date                                  | valid
+    '2021-01-01T10:00:00.000Z'            | true
+    ' 2021-01-01T10:00:00.000Z '          | true
+    '2021-01-01T10:00:00.000Z and more'   | true
+    '2021-13-01T10:00:00.000Z'            | false
+    '2021-01-01 10:00:00'                 | false
+    'Tuesday'                             | false
+    'TZ'                                  | false
+    ''                                    | false
+  }
+
+  private static QueryRule rule(Condition... conditions) {
+    def queryRule = new QueryRule()
+    queryRule.conditions.addAll(conditions)
+    return queryRule
+  }
+}